@@ -0,0 +1,176 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * In memory data bases used by benchmarks.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+final class BenchmarkDataBase {
+
+    private static final String INSERT_BROKER = "INSERT INTO Broker (service,name,lastHeartBeat,changeVersion) VALUES(?,?,?,?)";
+
+    private static final String INSERT_INFO = "INSERT INTO BrokerInfo (id,service,name,changeVersion) VALUES(?,?,?,?)";
+
+    private static final String INSERT_HEARTBEAT = "INSERT INTO BrokerHeartBeat (id,lastHeartBeat) VALUES(?,?)";
+
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Suffix of data base names, each trial use a new data base.
+     */
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private BenchmarkDataBase() {
+    }
+
+    /**
+     * Create an empty in memory data base.
+     * 
+     * @param type
+     *            h2 or derby
+     * @return data source
+     */
+    static DataSource create(String type) {
+        String name = "bench" + COUNTER.incrementAndGet();
+        if ("derby".equals(type)) {
+            EmbeddedDataSource ds = new EmbeddedDataSource();
+            ds.setDatabaseName("memory:" + name);
+            ds.setCreateDatabase("create");
+            return ds;
+        }
+        if ("h2".equals(type)) {
+            JdbcDataSource ds = new JdbcDataSource();
+            ds.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+            return ds;
+        }
+        throw new IllegalArgumentException("Unknown data base " + type);
+    }
+
+    /**
+     * Create discovery schema and insert live brokers named broker-0 to broker-(rows-1).
+     * 
+     * @param ds
+     *            data source
+     * @param rows
+     *            number of brokers
+     * @param schemaLayout
+     *            single or split
+     * @return adapter of the data base dialect
+     */
+    static JDBCAdapter fill(DataSource ds, int rows, String schemaLayout) throws SQLException {
+        JDBCAdapter adapter = JDBCAdapterFactory.createAdapter(ds, null);
+        adapter.setSchemaLayout(schemaLayout);
+        adapter.initDB();
+
+        long now = System.currentTimeMillis();
+        Connection conn = ds.getConnection();
+        try {
+            conn.setAutoCommit(false);
+            if (JDBCAdapter.SPLIT_LAYOUT.equals(schemaLayout)) {
+                PreparedStatement info = conn.prepareStatement(INSERT_INFO);
+                PreparedStatement heartBeat = conn.prepareStatement(INSERT_HEARTBEAT);
+                for (int i = 0; i < rows; i++) {
+                    long id = JDBCAdapter.getBrokerId(getService(i));
+                    info.setLong(1, id);
+                    info.setString(2, getService(i));
+                    info.setString(3, getName(i));
+                    info.setLong(4, now);
+                    info.addBatch();
+                    heartBeat.setLong(1, id);
+                    heartBeat.setLong(2, now);
+                    heartBeat.addBatch();
+                    if ((i + 1) % BATCH_SIZE == 0) {
+                        info.executeBatch();
+                        heartBeat.executeBatch();
+                    }
+                }
+                info.executeBatch();
+                heartBeat.executeBatch();
+                info.close();
+                heartBeat.close();
+            } else {
+                PreparedStatement stmt = conn.prepareStatement(INSERT_BROKER);
+                for (int i = 0; i < rows; i++) {
+                    stmt.setString(1, getService(i));
+                    stmt.setString(2, getName(i));
+                    stmt.setLong(3, now);
+                    stmt.setLong(4, now);
+                    stmt.addBatch();
+                    if ((i + 1) % BATCH_SIZE == 0) {
+                        stmt.executeBatch();
+                    }
+                }
+                stmt.executeBatch();
+                stmt.close();
+            }
+            conn.commit();
+        } finally {
+            conn.close();
+        }
+        return adapter;
+    }
+
+    static String getName(int i) {
+        return "broker-" + i;
+    }
+
+    static String getService(int i) {
+        return "tcp://10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff) + ":61616";
+    }
+
+    /**
+     * Release an in memory data base.
+     * 
+     * @param type
+     *            h2 or derby
+     * @param ds
+     *            data source
+     */
+    static void drop(String type, DataSource ds) {
+        try {
+            if ("derby".equals(type)) {
+                EmbeddedDataSource derby = (EmbeddedDataSource) ds;
+                derby.setCreateDatabase(null);
+                derby.setConnectionAttributes("drop=true");
+                derby.getConnection().close();
+            } else {
+                Connection conn = ds.getConnection();
+                try {
+                    conn.createStatement().execute("SHUTDOWN");
+                } finally {
+                    conn.close();
+                }
+            }
+        } catch (SQLException e) {
+            // Derby always end a drop with an exception
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.activemq.command.DiscoveryEvent;
+import org.apache.activemq.transport.discovery.DiscoveryListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.StaticApplicationContext;
+
+import com.netliard.SpringHook;
+
+/**
+ * Add and remove events of a started agent through its striped dispatcher to a listener. Each call add or remove all brokers of a view.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    /**
+     * Number of brokers added or removed by one call.
+     */
+    private static final int BROKERS = 16;
+
+    @Param({ "1", "4", "16" })
+    private int notifierThreads;
+
+    private DataSource ds;
+
+    private DataBaseDiscoveryAgent agent;
+
+    private Map<String, RemoteBrokerData> full;
+
+    private final Map<String, RemoteBrokerData> empty = Collections.emptyMap();
+
+    /**
+     * View version, above the versions of the hub scans.
+     */
+    private long version = 1L << 40;
+
+    private final AtomicLong events = new AtomicLong();
+
+    @Setup
+    public void setup() throws Exception {
+        ds = BenchmarkDataBase.create("h2");
+        StaticApplicationContext context = new StaticApplicationContext();
+        context.getBeanFactory().registerSingleton("benchmarkDataSource", ds);
+        new SpringHook().setApplicationContext(context);
+
+        full = new HashMap<String, RemoteBrokerData>();
+        for (int i = 0; i < BROKERS; i++) {
+            full.put(BenchmarkDataBase.getName(i), new RemoteBrokerData(BenchmarkDataBase.getName(i), BenchmarkDataBase.getService(i)));
+        }
+
+        agent = new DataBaseDiscoveryAgent();
+        agent.setDataSource("benchmarkDataSource");
+        agent.setNotifierThreads(notifierThreads);
+        // no scan during benchmark
+        agent.setScanInterval(3600000);
+        agent.setMinScanInterval(3600000);
+        agent.setMaxScanInterval(3600000);
+        agent.setDiscoveryListener(new DiscoveryListener() {
+            public void onServiceAdd(DiscoveryEvent event) {
+                events.incrementAndGet();
+            }
+
+            public void onServiceRemove(DiscoveryEvent event) {
+                events.incrementAndGet();
+            }
+        });
+        agent.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        agent.stop();
+        BenchmarkDataBase.drop("h2", ds);
+    }
+
+    @Benchmark
+    public long fireServiceEvent() {
+        version++;
+        agent.applyView((version & 1) == 0 ? full : empty, version);
+        agent.dispatchEvents();
+        return events.get();
+    }
+
+}
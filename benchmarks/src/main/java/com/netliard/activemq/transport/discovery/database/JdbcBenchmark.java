@@ -0,0 +1,132 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JDBCAdapter calls on embedded data bases : full broker read (list or streamed) and heartbeat writes, with both schema layouts.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JdbcBenchmark {
+
+    /**
+     * Number of local brokers in one heartbeat batch.
+     */
+    private static final int LOCAL_BROKERS = 10;
+
+    @Param({ "h2", "derby" })
+    private String db;
+
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    private int rows;
+
+    @Param({ "false", "true" })
+    private boolean pinnedConnection;
+
+    @Param({ "single", "split" })
+    private String schemaLayout;
+
+    private DataSource ds;
+
+    private JDBCAdapter adapter;
+
+    private RemoteBrokerData self;
+
+    private List<RemoteBrokerData> locals;
+
+    @Setup
+    public void setup() throws SQLException {
+        ds = BenchmarkDataBase.create(db);
+        adapter = BenchmarkDataBase.fill(ds, rows, schemaLayout);
+        adapter.setPinnedConnection(pinnedConnection);
+
+        self = new RemoteBrokerData(BenchmarkDataBase.getName(0), BenchmarkDataBase.getService(0), true);
+        locals = new ArrayList<RemoteBrokerData>(LOCAL_BROKERS);
+        for (int i = 0; i < Math.min(LOCAL_BROKERS, rows); i++) {
+            locals.add(new RemoteBrokerData(BenchmarkDataBase.getName(i), BenchmarkDataBase.getService(i), true));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        adapter.close();
+        BenchmarkDataBase.drop(db, ds);
+    }
+
+    @Benchmark
+    public Collection<RemoteBrokerData> getAllBroker() {
+        return adapter.getAllBroker(60000);
+    }
+
+    @Benchmark
+    public int scanAllBroker() {
+        final int[] count = new int[1];
+        adapter.scanAllBroker(60000, new BrokerConsumer() {
+            public void accept(RemoteBrokerData broker) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void updateBroker() {
+        self.updateHeartBeat();
+        adapter.updateBroker(self);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean updateBrokers() {
+        for (RemoteBrokerData data : locals) {
+            data.updateHeartBeat();
+        }
+        return adapter.updateBrokers(locals);
+    }
+
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Broker scan diff without data base : scanner view update from a broker list then agent cache diff. Each scan alternate between two lists
+ * with changed brokers of difference.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ScanBenchmark {
+
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    private int brokers;
+
+    /**
+     * Number of brokers different between two scans.
+     */
+    @Param({ "0", "10" })
+    private int changed;
+
+    private ListAdapter adapter;
+
+    private BrokerScanner scanner;
+
+    private DataBaseDiscoveryAgent agent;
+
+    private List<RemoteBrokerData> even;
+
+    private List<RemoteBrokerData> odd;
+
+    private boolean flip;
+
+    /**
+     * Adapter returning a prepared broker list.
+     */
+    private static class ListAdapter extends JDBCAdapter {
+        private Collection<RemoteBrokerData> next;
+
+        @Override
+        public boolean scanAllBroker(long maxDelay, BrokerConsumer consumer) {
+            for (RemoteBrokerData broker : next) {
+                consumer.accept(broker);
+            }
+            return true;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        even = new ArrayList<RemoteBrokerData>(brokers);
+        odd = new ArrayList<RemoteBrokerData>(brokers);
+        for (int i = 0; i < brokers; i++) {
+            even.add(new RemoteBrokerData(BenchmarkDataBase.getName(i), BenchmarkDataBase.getService(i)));
+            int j = (i < changed) ? brokers + i : i;
+            odd.add(new RemoteBrokerData(BenchmarkDataBase.getName(j), BenchmarkDataBase.getService(j)));
+        }
+
+        adapter = new ListAdapter();
+        scanner = new BrokerScanner();
+        agent = new DataBaseDiscoveryAgent();
+    }
+
+    @Benchmark
+    public boolean scanBroker() {
+        flip = !flip;
+        adapter.next = flip ? even : odd;
+        boolean result = scanner.scan(adapter, agent);
+        agent.applyView(scanner.getView(), scanner.getVersion());
+        agent.dispatchEvents();
+        return result;
+    }
+
+}
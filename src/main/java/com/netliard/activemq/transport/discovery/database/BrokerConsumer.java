@@ -0,0 +1,35 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+/**
+ * Receive brokers of a scan one by one, while the rows are read.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+public interface BrokerConsumer {
+
+    /**
+     * A broker row was read. A scan retried on another data base may give the same broker twice.
+     * 
+     * @param broker
+     *            broker data
+     */
+    void accept(RemoteBrokerData broker);
+
+}
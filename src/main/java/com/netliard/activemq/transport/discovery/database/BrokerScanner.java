@@ -0,0 +1,247 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Live brokers view read from data base. Full scan, incremental scan and cluster generation check are done here, agents only diff their cache
+ * with this view.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+class BrokerScanner {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(BrokerScanner.class);
+
+    /**
+     * Live brokers by name.
+     */
+    private final Map<String, RemoteBrokerData> view = new ConcurrentHashMap<String, RemoteBrokerData>();
+
+    /**
+     * Read only view given to agents.
+     */
+    private final Map<String, RemoteBrokerData> readOnlyView = Collections.unmodifiableMap(view);
+
+    /**
+     * Incremented on each view change and on the first successful scan, 0 until data base answer.
+     */
+    private volatile long version;
+
+    /**
+     * Start time of the last full broker scan.
+     */
+    private long lastFullScan;
+
+    /**
+     * Liveness lower bound used by the last scan.
+     */
+    private long lastDateMin;
+
+    /**
+     * Cluster digest seen by the last scan.
+     */
+    private String lastDigest;
+
+    /**
+     * Last scan read data base without error.
+     */
+    private boolean lastScanOk;
+
+    /**
+     * Failure detector fed by full scans, null if disabled.
+     */
+    private PhiAccrualDetector detector;
+
+    public Map<String, RemoteBrokerData> getView() {
+        return readOnlyView;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Update view from data base.
+     * 
+     * @param adapter
+     *            data base link
+     * @param config
+     *            agent giving scan options
+     * @return true if view changed, false on data base error (view is kept)
+     */
+    public boolean scan(JDBCAdapter adapter, DataBaseDiscoveryAgent config) {
+        long now = System.currentTimeMillis();
+        long dateMin = now - config.getMaxDelay();
+        boolean fullScanNeeded = lastDateMin == 0 || now - lastFullScan >= config.getFullScanInterval();
+        if (detector == null && config.getPhiThreshold() > 0) {
+            detector = new PhiAccrualDetector(config.getPhiThreshold(), config.getPhiMinStdDeviation());
+        }
+
+        if (config.isGenerationCheck()) {
+            // read digest before the scan so a change during the scan is seen by the next one
+            String digest = adapter.getClusterDigest(dateMin);
+            if (!fullScanNeeded && digest != null && digest.equals(lastDigest)) {
+                LOG.trace("Cluster digest unchanged : {}", digest);
+                lastScanOk = true;
+                return false;
+            }
+            lastDigest = digest;
+        }
+
+        Boolean changed;
+        if (!config.isIncrementalScan() || fullScanNeeded) {
+            changed = fullScan(adapter, config.getMaxDelay());
+        } else {
+            // change versions are broker clock time, so we accept the same clock skew as for heartbeat
+            // and read again the brokers registered since the previous liveness bound
+            changed = incrementalScan(adapter, lastDateMin, dateMin);
+        }
+
+        if (changed == null) {
+            // data base error : keep the last known view and read the same window again next time
+            lastDigest = null;
+            lastScanOk = false;
+            return false;
+        }
+        lastScanOk = true;
+        if (!config.isIncrementalScan() || fullScanNeeded) {
+            lastFullScan = now;
+        }
+
+        if (changed || version == 0) {
+            version++;
+        }
+        lastDateMin = dateMin;
+        return changed;
+    }
+
+    public boolean isLastScanOk() {
+        return lastScanOk;
+    }
+
+    /**
+     * Has the view been read from data base at least once.
+     * 
+     * @return true after the first successful scan
+     */
+    public boolean isLoaded() {
+        return version > 0;
+    }
+
+    private Boolean fullScan(JDBCAdapter adapter, long maxDelay) {
+        FullScan scan = new FullScan();
+        if (!adapter.scanAllBroker(maxDelay, scan)) {
+            if (scan.changed) {
+                // brokers already put are alive, agents must see them
+                version++;
+            }
+            return null;
+        }
+
+        if (detector != null) {
+            for (RemoteBrokerData suspect : detector.endRound()) {
+                LOG.info("Broker suspected by failure detector : " + suspect);
+                scan.seen.remove(suspect);
+            }
+        }
+
+        for (Iterator<RemoteBrokerData> it = view.values().iterator(); it.hasNext();) {
+            if (!scan.seen.contains(it.next())) {
+                it.remove();
+                scan.changed = true;
+            }
+        }
+        return scan.changed;
+    }
+
+    /**
+     * Put brokers in view while rows are read. Only seen brokers are kept, they are the view ones when nothing changed, so memory don't depend
+     * on the number of rows read at once. Brokers suspected by the failure detector are left out until a new heartbeat.
+     */
+    private class FullScan implements BrokerConsumer {
+        private final Set<RemoteBrokerData> seen = new HashSet<RemoteBrokerData>();
+
+        private boolean changed;
+
+        public void accept(RemoteBrokerData broker) {
+            if (detector != null && !detector.heartBeat(broker)) {
+                return;
+            }
+            changed |= put(broker);
+            RemoteBrokerData current = view.get(broker.getBrokerName());
+            seen.add(broker.equals(current) ? current : broker);
+        }
+    }
+
+    private Boolean incrementalScan(JDBCAdapter adapter, long previousDateMin, long dateMin) {
+        Collection<RemoteBrokerData> expired = adapter.getExpiredBroker(previousDateMin, dateMin);
+        Collection<RemoteBrokerData> updated = (expired == null) ? null : adapter.getChangedBroker(previousDateMin, dateMin);
+        if (updated == null) {
+            return null;
+        }
+        boolean changed = false;
+
+        for (RemoteBrokerData broker : expired) {
+            changed |= remove(broker);
+        }
+
+        for (RemoteBrokerData broker : updated) {
+            changed |= broker.isDraining() ? remove(broker) : put(broker);
+        }
+        return changed;
+    }
+
+    private boolean remove(RemoteBrokerData broker) {
+        if (broker.equals(view.get(broker.getBrokerName()))) {
+            view.remove(broker.getBrokerName());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Put a broker in view, a broker name with a new service URI replace the old one. A broker registered again keep its place for agents but
+     * its newer change version is kept, so quarantine see the restart.
+     */
+    private boolean put(RemoteBrokerData broker) {
+        RemoteBrokerData current = view.get(broker.getBrokerName());
+        if (broker.equals(current)) {
+            if (broker.getChangeVersion() > current.getChangeVersion()) {
+                view.put(broker.getBrokerName(), broker);
+            }
+            return false;
+        }
+        view.put(broker.getBrokerName(), broker);
+        return true;
+    }
+
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stop calling an unhealthy data base. After failureThreshold consecutive failures the circuit is open and calls fail at once. After openTime
+ * one call is let through (half open) : its success close the circuit, its failure open it again.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+class CircuitBreaker {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * Circuit states.
+     */
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Name used in logs.
+     */
+    private final String name;
+
+    /**
+     * Number of consecutive failures opening the circuit, 0 to never open it.
+     */
+    private volatile int failureThreshold;
+
+    /**
+     * Time in ms before a call is tried on an open circuit.
+     */
+    private volatile long openTime;
+
+    private State state = State.CLOSED;
+
+    /**
+     * Consecutive failures.
+     */
+    private int failures;
+
+    /**
+     * End of open state.
+     */
+    private long openUntil;
+
+    CircuitBreaker(String name, int failureThreshold, long openTime) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * Check if a call can be done.
+     * 
+     * @return false if the circuit is open or a half open call is running
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (currentTime() < openUntil) {
+                return false;
+            }
+            LOG.info("Try data base {}", name);
+            state = State.HALF_OPEN;
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * A call succeeded.
+     */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            LOG.info("Data base {} is back", name);
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * A call failed.
+     */
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failureThreshold > 0 && failures >= failureThreshold)) {
+            LOG.warn("Data base " + name + " unavailable after " + failures + " errors, calls stopped for " + openTime + " ms");
+            state = State.OPEN;
+            openUntil = currentTime() + openTime;
+        }
+    }
+
+    /**
+     * Local clock in ms.
+     */
+    long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public void setOpenTime(long openTime) {
+        this.openTime = openTime;
+    }
+
+}
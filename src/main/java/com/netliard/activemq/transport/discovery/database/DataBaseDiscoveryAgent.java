@@ -20,17 +20,30 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
 
 import org.apache.activemq.broker.BrokerService;
 import org.apache.activemq.broker.BrokerServiceAware;
+import org.apache.activemq.broker.jmx.AnnotatedMBean;
 import org.apache.activemq.command.DiscoveryEvent;
 import org.apache.activemq.transport.discovery.DiscoveryAgent;
 import org.apache.activemq.transport.discovery.DiscoveryListener;
@@ -47,7 +60,7 @@ import org.slf4j.LoggerFactory;
  * @author Samuel Liard
  * 
  */
-public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerServiceAware {
+public class DataBaseDiscoveryAgent implements DiscoveryAgent, BrokerServiceAware {
 
     /**
      * logger.
@@ -57,22 +70,88 @@ public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerS
     /**
      * Cache list of broker.
      */
-    private Map<String, RemoteBrokerData> brokersByService = new ConcurrentHashMap<String, RemoteBrokerData>();
+    private final Map<String, RemoteBrokerData> brokersByService = new ConcurrentHashMap<String, RemoteBrokerData>();
+
+    /**
+     * Read only view of broker cache.
+     */
+    private final Collection<RemoteBrokerData> brokers = Collections.unmodifiableCollection(brokersByService.values());
 
     /**
      * Name of spring Data Source.
      */
     private String dataSource;
 
+    /**
+     * Comma separated names of spring Data Sources of read replicas, scans use them instead of dataSource.
+     */
+    private String readDataSources;
+
+    /**
+     * Send a slow scan to another replica too, the first answer is used.
+     */
+    private boolean hedgedReads = false;
+
+    /**
+     * Percentile of recent read latencies waited before a hedged read.
+     */
+    private int hedgePercentile = 95;
+
     /**
      * Define if agent is started or not.
      */
     private AtomicBoolean started = new AtomicBoolean(false);
 
     /**
-     * Background Thread to scan if new brokers arrived.
+     * Hub doing data base work, shared or not.
+     */
+    private volatile DataBaseDiscoveryHub hub;
+
+    /**
+     * Lock of hub attach and detach.
+     */
+    private final Object startLock = new Object();
+
+    /**
+     * Return from start before the data base work, done on I/O executor.
      */
-    private Thread runner;
+    private boolean asyncStart = false;
+
+    /**
+     * Done when local broker is registered and first scan is applied, failed with an IOException if the data base didn't answer (agent go on
+     * trying in background).
+     */
+    private volatile Future<Void> readyFuture;
+
+    /**
+     * Share data base scan and heartbeat with all agents of the JVM using the same DataSource.
+     */
+    private boolean sharedHub = false;
+
+    /**
+     * Version of the hub broker view applied to cache, -1 to force next diff.
+     */
+    private long appliedViewVersion = -1;
+
+    /**
+     * Failed brokers by name, they are not added again until the end of their quarantine. Guarded by this.
+     */
+    private final Map<String, Quarantine> quarantines = new HashMap<String, Quarantine>();
+
+    /**
+     * Time in ms a failed broker is not added again, doubled on each new failure, 0 to disable quarantine.
+     */
+    private int quarantineTime = 1000;
+
+    /**
+     * Max quarantine time in ms, a broker without failure during this time lose one failure.
+     */
+    private int quarantineMaxTime = 60000;
+
+    /**
+     * Mark the local broker row as draining on stop, so peers remove it at once instead of waiting maxDelay.
+     */
+    private boolean drainOnStop = true;
 
     /**
      * MQ listner to add/remove broker.
@@ -85,29 +164,205 @@ public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerS
     private String selfService;
 
     /**
-     * Asynchrone task manager.
+     * Asynchrone task manager, events of a broker are sent in order.
      */
-    private ExecutorService executor = null;
+    private StripedDispatcher dispatcher = null;
+
+    /**
+     * Events waiting to be given to the dispatcher, collected while agent or hub locks are held.
+     */
+    private final Queue<Notification> pendingEvents = new ConcurrentLinkedQueue<Notification>();
+
+    /**
+     * Define if a thread is giving pending events to the dispatcher.
+     */
+    private final AtomicBoolean dispatching = new AtomicBoolean(false);
+
+    /**
+     * Run blocking tasks on virtual threads when the JVM support them.
+     */
+    private boolean virtualThreads = false;
+
+    /**
+     * Max number of events sent to listener at the same time.
+     */
+    private int notifierThreads = 4;
+
+    /**
+     * Max number of waiting events by notifier thread.
+     */
+    private int notifierQueueSize = 1000;
 
     /**
      * Time in ms between 2 new broker scan.
      */
     private int scanInterval = 10000;
 
+    /**
+     * Min time in ms between 2 scan, used after a membership change.
+     */
+    private int minScanInterval = 2000;
+
+    /**
+     * Max time in ms between 2 scan, reached while membership is stable.
+     */
+    private int maxScanInterval = 20000;
+
+    /**
+     * Random part of intervals (0.1 is +/- 10%) so brokers started together don't hit data base at the same time.
+     */
+    private double jitter = 0.1;
+
     /**
      * Time max of last hearbeat broker in ms.
      */
     private int maxDelay = 25000;
 
     /**
-     * Server hostName use for distant client.
+     * Time in ms between 2 heartbeat of local broker, 0 to renew the lease at one third of maxDelay.
      */
-    private String hostName;
+    private int heartBeatInterval = 0;
+
+    /**
+     * Only read brokers changed or expired since the last scan.
+     */
+    private boolean incrementalScan = false;
+
+    /**
+     * Only scan brokers when cluster generation or live broker count changed.
+     */
+    private boolean generationCheck = false;
+
+    /**
+     * Time in ms between 2 full broker scan when incremental scan or generation check is used.
+     */
+    private int fullScanInterval = 60000;
+
+    /**
+     * Suspicion level of the phi accrual failure detector above which a broker is removed before maxDelay, 0 to disable it.
+     */
+    private double phiThreshold = 0;
+
+    /**
+     * Min standard deviation in ms of heartbeat intervals used by the failure detector.
+     */
+    private int phiMinStdDeviation = 500;
+
+    /**
+     * JDBCAdapter dialect (e.g. mysql), detected from data base if not set.
+     */
+    private String dialect;
+
+    /**
+     * Group of brokers, agents only see brokers of their group. Set from URI host (e.g. multicastdb://production) or group option, which
+     * override the host. No host and default are group default.
+     */
+    private String group = JDBCAdapter.DEFAULT_GROUP;
+
+    /**
+     * Tables used : single Broker table, or split with heartbeats in a narrow table apart from broker metadata.
+     */
+    private String schemaLayout = JDBCAdapter.SINGLE_LAYOUT;
+
+    /**
+     * Keep data base connections and their prepared statements open, one for writes and one for scans.
+     */
+    private boolean pinnedConnection = false;
+
+    /**
+     * Max time in ms to get a data base connection, 0 for driver default.
+     */
+    private int connectTimeout = 10000;
+
+    /**
+     * Max time in ms of a data base query, 0 for no limit.
+     */
+    private int queryTimeout = 10000;
+
+    /**
+     * Max time in ms of a data base update, 0 for no limit.
+     */
+    private int updateTimeout = 10000;
+
+    /**
+     * Consecutive data base failures before calls are stopped, 0 to never stop them.
+     */
+    private int breakerFailureThreshold = 3;
+
+    /**
+     * Time in ms without data base call after breakerFailureThreshold failures, then one call is tried.
+     */
+    private int breakerOpenTime = 10000;
+
+    /**
+     * Number of rows fetched by round trip of a broker scan, 0 for driver default.
+     */
+    private int fetchSize = 0;
+
+    /**
+     * Delete old rows of Broker table. Only the broker owning the reaper lease do it.
+     */
+    private boolean reaper = false;
+
+    /**
+     * Time in ms after last heartbeat before a broker row is deleted.
+     */
+    private int reaperRetention = 3600000;
 
     /**
-     * JDBC link with data base.
+     * Time in ms between 2 reaper run.
      */
-    private JDBCAdapter adapter;
+    private int reaperInterval = 60000;
+
+    /**
+     * Max number of rows deleted by one statement.
+     */
+    private int reaperBatchSize = 100;
+
+    /**
+     * Path of the local file keeping last known brokers, null for no snapshot.
+     */
+    private String snapshotFile;
+
+    /**
+     * Last known brokers on disk.
+     */
+    private MembershipSnapshot snapshot;
+
+    /**
+     * Number of broker add events.
+     */
+    private final AtomicLong addCount = new AtomicLong();
+
+    /**
+     * Number of broker remove events.
+     */
+    private final AtomicLong removeCount = new AtomicLong();
+
+    /**
+     * Class name of a DiscoveryMetricsReporter, null for no report.
+     */
+    private String metricsReporter;
+
+    /**
+     * Time in ms between 2 metrics report.
+     */
+    private int metricsReportInterval = 60000;
+
+    /**
+     * Next metrics report.
+     */
+    private ScheduledFuture<?> reportFuture;
+
+    /**
+     * Name of agent MBean, null if not registered.
+     */
+    private ObjectName mbeanName;
+
+    /**
+     * Server hostName use for distant client.
+     */
+    private String hostName;
 
     BrokerService brokerService;
     
@@ -116,22 +371,10 @@ public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerS
      * 
      * @return broker identifier
      */
-    private String getLocalBrokerKey() {
+    String getLocalBrokerKey() {
         return "lb-" + getHostName() + "-" + selfService;
     }
 
-    /**
-     * Get Data Base link.
-     * 
-     * @return Data Base
-     */
-    private JDBCAdapter getAdapter() {
-        if (adapter == null) {
-            adapter = new JDBCAdapter(dataSource);
-        }
-        return adapter;
-    }
-
     private String getHostName() {
         if (hostName == null) {
             try {
@@ -150,62 +393,211 @@ public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerS
 
         LOG.info("Start DataBaseDiscoveryAgent");
 
+        if (phiThreshold > 0 && (incrementalScan || generationCheck)) {
+            // failure detector need each broker heartbeat on each scan
+            throw new IllegalArgumentException("phiThreshold need full scans, incrementalScan and generationCheck must be false");
+        }
+
         if (started.compareAndSet(false, true)) {
+            DiscoveryExecutors.acquire(virtualThreads);
+            loadSnapshot();
+            // warm start : listener get the snapshot brokers before any data base work
+            dispatchEvents();
+            registerMBean();
+            startReporter();
+
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                public Void call() throws Exception {
+                    attachHub();
+                    if (started.get() && !isReady()) {
+                        throw new IOException("DataBaseDiscoveryAgent not ready, data base unreachable, retry in background");
+                    }
+                    return null;
+                }
+            });
+            readyFuture = task;
 
-            getAdapter().initDB();
-            doAdvertizeSelf();
-            scanBroker();
+            if (asyncStart) {
+                DiscoveryExecutors.getIo().execute(task);
+            } else {
+                task.run();
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        // broker start anyway, heartbeat and scan will register it and read brokers once data base answer
+                        LOG.warn(e.getCause().getMessage());
+                        return;
+                    }
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw (Error) e.getCause();
+                }
+            }
+        }
 
-            runner = new Thread(this);
-            runner.setName(this.toString() + ":" + runner.getName());
-            runner.setDaemon(true);
-            runner.start();
+    }
+
+    /**
+     * Send brokers of the snapshot file to listener, first scan will remove the dead ones.
+     */
+    private synchronized void loadSnapshot() {
+        if (snapshotFile == null) {
+            snapshot = null;
+            return;
+        }
+        snapshot = new MembershipSnapshot(snapshotFile);
+        for (RemoteBrokerData broker : snapshot.load()) {
+            if (!broker.getBrokerName().equals(getLocalBrokerKey())) {
+                addRemoteBroker(broker);
+            }
         }
+    }
 
+    /**
+     * Register agent MBean in broker management context.
+     */
+    private void registerMBean() {
+        if (brokerService == null || !brokerService.isUseJmx()) {
+            return;
+        }
+        try {
+            ObjectName brokerName = brokerService.getBrokerObjectName();
+            Hashtable<String, String> properties = new Hashtable<String, String>(brokerName.getKeyPropertyList());
+            properties.put("Type", "DataBaseDiscoveryAgent");
+            properties.put("DiscoveryAgentName", ObjectName.quote(getName()));
+            ObjectName name = new ObjectName(brokerName.getDomain(), properties);
+
+            AnnotatedMBean.registerMBean(brokerService.getManagementContext(), new DataBaseDiscoveryAgentView(this), name);
+            mbeanName = name;
+        } catch (Exception e) {
+            LOG.warn("Unable to register DataBaseDiscoveryAgent MBean : " + e.getMessage());
+        }
     }
 
-    @Override
-    public void stop() throws Exception {
+    private void unregisterMBean() {
+        if (mbeanName != null) {
+            try {
+                brokerService.getManagementContext().unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                LOG.warn("Unable to unregister DataBaseDiscoveryAgent MBean : " + e.getMessage());
+            }
+            mbeanName = null;
+        }
+    }
 
-        LOG.info("Stop DataBaseDiscoveryAgent");
+    /**
+     * Send metrics to reporter periodically, on I/O executor.
+     */
+    private void startReporter() {
+        if (metricsReporter == null) {
+            return;
+        }
+        final DiscoveryMetricsReporter reporter;
+        try {
+            reporter = (DiscoveryMetricsReporter) Class.forName(metricsReporter, true, DataBaseDiscoveryAgent.class.getClassLoader()).newInstance();
+        } catch (Exception e) {
+            LOG.warn("Unable to create metrics reporter " + metricsReporter + " : " + e);
+            return;
+        }
 
-        if (started.compareAndSet(true, false)) {
-            if (runner != null) {
-                runner.interrupt();
+        final Runnable report = new Runnable() {
+            public void run() {
+                try {
+                    reporter.report(getName(), getMetrics());
+                } catch (RuntimeException e) {
+                    LOG.warn("Metrics reporter error : " + e.getMessage(), e);
+                }
+            }
+        };
+        reportFuture = DiscoveryExecutors.getTimer().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                DiscoveryExecutors.getIo().execute(report);
             }
+        }, metricsReportInterval, metricsReportInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopReporter() {
+        if (reportFuture != null) {
+            reportFuture.cancel(false);
+            reportFuture = null;
         }
+    }
+
+    /**
+     * Name of agent in metrics : local service or data source for clients.
+     */
+    private String getName() {
+        return (selfService != null) ? selfService : "client:" + dataSource + "@" + Integer.toHexString(System.identityHashCode(this));
+    }
 
+    /**
+     * Attach agent to its hub, unless agent was stopped before.
+     */
+    private void attachHub() {
+        synchronized (startLock) {
+            if (started.get() && hub == null) {
+                try {
+                    hub = DataBaseDiscoveryHub.attach(this);
+                    if (isReady()) {
+                        LOG.info("DataBaseDiscoveryAgent ready");
+                    }
+                } catch (RuntimeException e) {
+                    LOG.warn("Unable to start DataBaseDiscoveryAgent : " + e.getMessage(), e);
+                    throw e;
+                }
+            }
+        }
     }
 
     @Override
-    public void run() {
+    public void stop() throws Exception {
 
-        while (started.get()) {
+        LOG.info("Stop DataBaseDiscoveryAgent");
 
-            try {
-                doAdvertizeSelf();
-                scanBroker();
-                Thread.sleep(scanInterval);
-            } catch (InterruptedException e) {
-                LOG.warn("Thread interrupted : " + e.getMessage());
+        if (started.compareAndSet(true, false)) {
+            // a pending async start is dropped, a running one is finished then detached
+            Future<Void> ready = readyFuture;
+            if (ready != null) {
+                ready.cancel(false);
+            }
+            synchronized (startLock) {
+                if (hub != null) {
+                    hub.detach(this);
+                    hub = null;
+                }
+            }
+            stopReporter();
+            unregisterMBean();
+            synchronized (this) {
+                pendingEvents.clear();
+                if (dispatcher != null) {
+                    dispatcher.shutdown();
+                    dispatcher = null;
+                }
+                appliedViewVersion = -1;
+                quarantines.clear();
             }
+            DiscoveryExecutors.release();
         }
+
     }
 
     /**
-     * Manage local broker.
+     * Manage local broker : register it the first time. Local broker is kept in cache only once registered, a failed registration is tried again
+     * by the next heartbeat.
+     * 
+     * @param adapter
+     *            data base link
+     * @return local broker data to heartbeat, null if not registered or just registered
      */
-    private synchronized void doAdvertizeSelf() {
+    synchronized RemoteBrokerData doAdvertizeSelf(JDBCAdapter adapter) {
         if (selfService != null) {
 
             RemoteBrokerData selfData = brokersByService.get(getLocalBrokerKey());
 
             if (selfData == null) {
-                selfData = new RemoteBrokerData(getLocalBrokerKey(), selfService);
-                selfData.setLocal(true);
-                fireServiceAddEvent(selfData);
-                LOG.info("Send local broker : {}", selfData);
-
                 String serviceWithIp = selfService;
                 int localIndex = serviceWithIp.indexOf("localhost");
 
@@ -214,41 +606,160 @@ public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerS
                     serviceWithIp = serviceWithIp.substring(0, localIndex) + getHostName() + serviceWithIp.substring(portIndex);
                 }
 
-                RemoteBrokerData selfIpData = new RemoteBrokerData(getLocalBrokerKey(), serviceWithIp);
-                selfIpData.setLocal(true);
-                getAdapter().addBroker(selfIpData);
-                getAdapter().updateBroker(selfIpData);
+                RemoteBrokerData selfIpData = new RemoteBrokerData(getLocalBrokerKey(), serviceWithIp, true);
+                if (!adapter.registerBroker(selfIpData)) {
+                    return null;
+                }
+                adapter.bumpGeneration();
 
                 brokersByService.put(getLocalBrokerKey(), selfIpData);
                 LOG.info("Persist self broker : {}", selfIpData);
+
+                selfData = new RemoteBrokerData(getLocalBrokerKey(), selfService, true);
+                fireServiceAddEvent(selfData);
+                LOG.info("Send local broker : {}", selfData);
             } else {
-                selfData.updateHeartBeat();
-                getAdapter().updateBroker(selfData);
+                return selfData;
             }
 
         }
+        return null;
+    }
+
+    boolean isServiceRegistered() {
+        return selfService != null;
+    }
+
+    /**
+     * Get local broker as persisted in data base.
+     * 
+     * @return local broker data, null if not registered
+     */
+    RemoteBrokerData getLocalBroker() {
+        return (selfService == null) ? null : brokersByService.get(getLocalBrokerKey());
     }
 
-    private void scanBroker() {
-        Collection<RemoteBrokerData> allBroker = getAdapter().getAllBroker(maxDelay);
-        RemoteBrokerData[] arrayOfBroker = brokersByService.values().toArray(new RemoteBrokerData[0]);
+    /**
+     * Diff broker cache with the live brokers read by hub. Events are only collected, the hub give them with dispatchEvents once its locks
+     * are released.
+     * 
+     * @param view
+     *            live brokers by name
+     * @param version
+     *            view version
+     */
+    synchronized void applyView(Map<String, RemoteBrokerData> view, long version) {
+        if (version == appliedViewVersion) {
+            return;
+        }
+        appliedViewVersion = version;
+        boolean changed = false;
+
+        // ConcurrentHashMap iterator allow remove during iteration
+        for (RemoteBrokerData broker : brokersByService.values()) {
+            if (!broker.isLocal() && !broker.equals(view.get(broker.getBrokerName()))) {
+                removeRemoteBroker(broker);
+                changed = true;
+            }
+        }
 
-        for (RemoteBrokerData broker : arrayOfBroker) {
-            if (!allBroker.contains(broker) && !broker.isLocal()) {
-                fireServiceRemovedEvent(broker);
-                brokersByService.remove(broker.getBrokerName());
-                LOG.info("Delete broker : {}", broker);
+        long now = System.currentTimeMillis();
+        for (RemoteBrokerData broker : view.values()) {
+            if (!quarantines.isEmpty() && !brokersByService.containsKey(broker.getBrokerName()) && isQuarantined(broker, now)) {
+                // diff again after next scan to add it at the end of quarantine
+                appliedViewVersion = -1;
+            } else {
+                changed |= addRemoteBroker(broker);
             }
         }
 
-        for (RemoteBrokerData broker : allBroker) {
-            RemoteBrokerData data = brokersByService.get(broker.getBrokerName());
-            if ((data == null) && !broker.isLocal()) {
-                brokersByService.put(broker.getBrokerName(), broker);
-                fireServiceAddEvent(broker);
-                LOG.info("Add broker : {}", broker);
+        if (changed && snapshot != null) {
+            snapshot.save(brokersByService.values());
+        }
+    }
+
+    /**
+     * Failures of a broker.
+     */
+    private static class Quarantine {
+        private int failures;
+        private long lastFailure;
+        private long until;
+
+        /**
+         * Change version of the broker seen after its last failure, -1 until a scan see it.
+         */
+        private long changeVersion = -1;
+
+        /**
+         * Number of failures, one is forgotten by max quarantine time without failure.
+         */
+        int getFailures(long now, int maxTime) {
+            long decay = (maxTime > 0) ? (now - lastFailure) / maxTime : 0;
+            return (int) Math.max(0, failures - decay);
+        }
+    }
+
+    /**
+     * Start or extend the quarantine of a failed broker, with a time doubled on each failure.
+     */
+    private void quarantine(String brokerName, long now) {
+        for (Iterator<Quarantine> it = quarantines.values().iterator(); it.hasNext();) {
+            Quarantine quarantine = it.next();
+            if (now >= quarantine.until && quarantine.getFailures(now, quarantineMaxTime) == 0) {
+                it.remove();
             }
         }
+
+        Quarantine quarantine = quarantines.get(brokerName);
+        if (quarantine == null) {
+            quarantine = new Quarantine();
+            quarantines.put(brokerName, quarantine);
+        }
+        quarantine.failures = quarantine.getFailures(now, quarantineMaxTime) + 1;
+        quarantine.lastFailure = now;
+        long delay = Math.min((long) quarantineTime << Math.min(quarantine.failures - 1, 20), Math.max(quarantineTime, quarantineMaxTime));
+        quarantine.until = now + delay;
+        quarantine.changeVersion = -1;
+        LOG.info("Broker {} quarantined for {} ms", brokerName, delay);
+    }
+
+    /**
+     * Check if a broker is in quarantine. Quarantine end at once if broker registered again since its failure (restart).
+     */
+    private boolean isQuarantined(RemoteBrokerData broker, long now) {
+        Quarantine quarantine = quarantines.get(broker.getBrokerName());
+        if (quarantine == null) {
+            return false;
+        }
+        if (quarantine.changeVersion < 0) {
+            quarantine.changeVersion = broker.getChangeVersion();
+        } else if (broker.getChangeVersion() > quarantine.changeVersion) {
+            LOG.info("Broker {} registered again, end of quarantine", broker);
+            quarantines.remove(broker.getBrokerName());
+            return false;
+        }
+        return now < quarantine.until;
+    }
+
+    private boolean addRemoteBroker(RemoteBrokerData broker) {
+        RemoteBrokerData data = brokersByService.get(broker.getBrokerName());
+        // a row of the local broker read before its registration is not a remote broker
+        if ((data == null) && !broker.isLocal() && !broker.getBrokerName().equals(getLocalBrokerKey())) {
+            brokersByService.put(broker.getBrokerName(), broker);
+            fireServiceAddEvent(broker);
+            addCount.incrementAndGet();
+            LOG.info("Add broker : {}", broker);
+            return true;
+        }
+        return false;
+    }
+
+    private void removeRemoteBroker(RemoteBrokerData broker) {
+        fireServiceRemovedEvent(broker);
+        brokersByService.remove(broker.getBrokerName());
+        removeCount.incrementAndGet();
+        LOG.info("Delete broker : {}", broker);
     }
 
     private void fireServiceRemovedEvent(RemoteBrokerData data) {
@@ -259,7 +770,7 @@ public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerS
             // Have the listener process the event async so that
             // he does not block this thread since we are doing time sensitive
             // processing of events.
-            getExecutor().execute(new Runnable() {
+            pendingEvents.add(new Notification(event.getBrokerName(), new Runnable() {
                 public void run() {
                     DiscoveryListener discoveryListener = DataBaseDiscoveryAgent.this.discoveryListener;
                     LOG.info("onServiceRemove send to discovery {} : {}", discoveryListener, event.getServiceName());
@@ -267,7 +778,7 @@ public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerS
                         discoveryListener.onServiceRemove(event);
                     }
                 }
-            });
+            }));
         }
     }
 
@@ -285,7 +796,7 @@ public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerS
             // Have the listener process the event async so that
             // he does not block this thread since we are doing time sensitive
             // processing of events.
-            getExecutor().execute(new Runnable() {
+            pendingEvents.add(new Notification(event.getBrokerName(), new Runnable() {
                 public void run() {
                     DiscoveryListener discoveryListener = DataBaseDiscoveryAgent.this.discoveryListener;
                     LOG.info("onServiceAdd send to discovery {} : {}", discoveryListener, event.getServiceName());
@@ -293,23 +804,144 @@ public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerS
                         discoveryListener.onServiceAdd(event);
                     }
                 }
-            });
+            }));
         }
     }
 
-    private ExecutorService getExecutor() {
-        if (executor == null) {
-            final String threadName = "Notifier-" + this.toString();
+    /**
+     * Event of a broker waiting for the dispatcher.
+     */
+    private static class Notification {
+        private final String brokerName;
+        private final Runnable task;
 
-            executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
-                public Thread newThread(Runnable runable) {
-                    Thread t = new Thread(runable, threadName);
-                    t.setDaemon(true);
-                    return t;
+        Notification(String brokerName, Runnable task) {
+            this.brokerName = brokerName;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Give pending events to the dispatcher. Must be called without agent or hub lock : a full dispatcher stripe make the caller wait, and
+     * a heartbeat must never wait for it. Only one thread give events at a time so events of a broker keep their order.
+     */
+    void dispatchEvents() {
+        while (!pendingEvents.isEmpty() && dispatching.compareAndSet(false, true)) {
+            try {
+                Notification notification;
+                while (started.get() && (notification = pendingEvents.poll()) != null) {
+                    getDispatcher().execute(notification.brokerName, notification.task);
                 }
-            });
+                if (!started.get()) {
+                    pendingEvents.clear();
+                }
+            } catch (RejectedExecutionException e) {
+                pendingEvents.clear();
+                LOG.debug("Dispatcher stopped, events dropped");
+            } finally {
+                dispatching.set(false);
+            }
         }
-        return executor;
+    }
+
+    private synchronized StripedDispatcher getDispatcher() {
+        if (dispatcher == null) {
+            dispatcher = new StripedDispatcher(DiscoveryExecutors.getIo(), notifierThreads, notifierQueueSize);
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Get number of events waiting to be sent to listener.
+     * 
+     * @return notifier queue depth
+     */
+    public int getNotifierQueueDepth() {
+        StripedDispatcher current = dispatcher;
+        return (current == null) ? 0 : current.getQueueDepth();
+    }
+
+    public long getAddCount() {
+        return addCount.get();
+    }
+
+    public long getRemoveCount() {
+        return removeCount.get();
+    }
+
+    /**
+     * Get metrics of agent and of its data base work, see {@link DiscoveryMetricsReporter}.
+     * 
+     * @return values by name, sorted
+     */
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new TreeMap<String, Long>();
+        metrics.put("brokers", (long) brokersByService.size());
+        metrics.put("adds", getAddCount());
+        metrics.put("removes", getRemoveCount());
+        metrics.put("notifierQueueDepth", (long) getNotifierQueueDepth());
+        metrics.put("jdbc.openCircuits", (long) getOpenCircuitCount());
+        metrics.put("quarantinedBrokers", (long) getQuarantinedCount());
+        DiscoveryMetrics hubMetrics = getHubMetrics();
+        if (hubMetrics != null) {
+            hubMetrics.fill(metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Get number of failed brokers not added again until the end of their quarantine.
+     * 
+     * @return quarantined broker count
+     */
+    public synchronized int getQuarantinedCount() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Quarantine quarantine : quarantines.values()) {
+            if (now < quarantine.until) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    DiscoveryMetrics getHubMetrics() {
+        DataBaseDiscoveryHub current = hub;
+        return (current == null) ? null : current.getMetrics();
+    }
+
+    int getOpenCircuitCount() {
+        DataBaseDiscoveryHub current = hub;
+        return (current == null) ? 0 : current.getAdapter().getOpenCircuitCount();
+    }
+
+    /**
+     * Get start progress : done when local broker is registered and brokers of data base are known, failed with an IOException if the data base
+     * didn't answer at start (agent is not stopped and go on trying, see isReady). With asyncStart, callers may wait on it or not.
+     * 
+     * @return readiness of the last start, null if never started
+     */
+    public Future<Void> getReadyFuture() {
+        return readyFuture;
+    }
+
+    /**
+     * Check if agent work with data base : local broker is registered and brokers were read at least once.
+     * 
+     * @return true if ready
+     */
+    public boolean isReady() {
+        DataBaseDiscoveryHub current = hub;
+        return current != null && current.isLoaded() && (selfService == null || getLocalBroker() != null);
+    }
+
+    /**
+     * Snapshot of known brokers, local one included. Read without lock.
+     * 
+     * @return unmodifiable view of brokers
+     */
+    public Collection<RemoteBrokerData> getBrokers() {
+        return brokers;
     }
 
     @Override
@@ -330,10 +962,25 @@ public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerS
         LOG.info("serviceFailed : {}", event.getBrokerName());
 
         RemoteBrokerData data = new RemoteBrokerData(event.getBrokerName(), event.getServiceName());
-        fireServiceRemovedEvent(data);
-        brokersByService.remove(event.getBrokerName());
 
-        // TODO manage add/remove cycle
+        // broker is added again by a next scan if it is still alive, after its quarantine : remove and quarantine are done under the
+        // lock of applyView so a concurrent scan can't add it back in between
+        synchronized (this) {
+            fireServiceRemovedEvent(data);
+            if (brokersByService.remove(event.getBrokerName()) != null) {
+                removeCount.incrementAndGet();
+            }
+            appliedViewVersion = -1;
+            if (quarantineTime > 0) {
+                quarantine(event.getBrokerName(), System.currentTimeMillis());
+            }
+        }
+        dispatchEvents();
+
+        DataBaseDiscoveryHub current = hub;
+        if (current != null) {
+            current.tightenScan();
+        }
     }
     
     @Override
@@ -349,6 +996,30 @@ public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerS
         this.scanInterval = scanInterval;
     }
 
+    public int getMinScanInterval() {
+        return minScanInterval;
+    }
+
+    public void setMinScanInterval(int minScanInterval) {
+        this.minScanInterval = minScanInterval;
+    }
+
+    public int getMaxScanInterval() {
+        return maxScanInterval;
+    }
+
+    public void setMaxScanInterval(int maxScanInterval) {
+        this.maxScanInterval = maxScanInterval;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public void setJitter(double jitter) {
+        this.jitter = jitter;
+    }
+
     public int getMaxDelay() {
         return maxDelay;
     }
@@ -357,6 +1028,278 @@ public class DataBaseDiscoveryAgent implements DiscoveryAgent, Runnable, BrokerS
         this.maxDelay = maxDelay;
     }
 
+    public boolean isIncrementalScan() {
+        return incrementalScan;
+    }
+
+    public void setIncrementalScan(boolean incrementalScan) {
+        this.incrementalScan = incrementalScan;
+    }
+
+    public boolean isGenerationCheck() {
+        return generationCheck;
+    }
+
+    public void setGenerationCheck(boolean generationCheck) {
+        this.generationCheck = generationCheck;
+    }
+
+    public int getFullScanInterval() {
+        return fullScanInterval;
+    }
+
+    public void setFullScanInterval(int fullScanInterval) {
+        this.fullScanInterval = fullScanInterval;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    public void setQueryTimeout(int queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    public int getUpdateTimeout() {
+        return updateTimeout;
+    }
+
+    public void setUpdateTimeout(int updateTimeout) {
+        this.updateTimeout = updateTimeout;
+    }
+
+    public int getBreakerFailureThreshold() {
+        return breakerFailureThreshold;
+    }
+
+    public void setBreakerFailureThreshold(int breakerFailureThreshold) {
+        this.breakerFailureThreshold = breakerFailureThreshold;
+    }
+
+    public int getBreakerOpenTime() {
+        return breakerOpenTime;
+    }
+
+    public void setBreakerOpenTime(int breakerOpenTime) {
+        this.breakerOpenTime = breakerOpenTime;
+    }
+
+    public boolean isReaper() {
+        return reaper;
+    }
+
+    public void setReaper(boolean reaper) {
+        this.reaper = reaper;
+    }
+
+    public int getReaperRetention() {
+        return reaperRetention;
+    }
+
+    public void setReaperRetention(int reaperRetention) {
+        this.reaperRetention = reaperRetention;
+    }
+
+    public int getReaperInterval() {
+        return reaperInterval;
+    }
+
+    public void setReaperInterval(int reaperInterval) {
+        this.reaperInterval = reaperInterval;
+    }
+
+    public int getReaperBatchSize() {
+        return reaperBatchSize;
+    }
+
+    public void setReaperBatchSize(int reaperBatchSize) {
+        this.reaperBatchSize = reaperBatchSize;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public int getNotifierThreads() {
+        return notifierThreads;
+    }
+
+    public void setNotifierThreads(int notifierThreads) {
+        this.notifierThreads = notifierThreads;
+    }
+
+    public int getNotifierQueueSize() {
+        return notifierQueueSize;
+    }
+
+    public void setNotifierQueueSize(int notifierQueueSize) {
+        this.notifierQueueSize = notifierQueueSize;
+    }
+
+    public boolean isAsyncStart() {
+        return asyncStart;
+    }
+
+    public void setAsyncStart(boolean asyncStart) {
+        this.asyncStart = asyncStart;
+    }
+
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public boolean isSharedHub() {
+        return sharedHub;
+    }
+
+    public void setSharedHub(boolean sharedHub) {
+        this.sharedHub = sharedHub;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public void setGroup(String group) {
+        this.group = (group == null || group.length() == 0 || JDBCAdapter.DEFAULT_GROUP.equalsIgnoreCase(group)) ? JDBCAdapter.DEFAULT_GROUP : group;
+    }
+
+    public int getQuarantineTime() {
+        return quarantineTime;
+    }
+
+    public void setQuarantineTime(int quarantineTime) {
+        this.quarantineTime = quarantineTime;
+    }
+
+    public int getQuarantineMaxTime() {
+        return quarantineMaxTime;
+    }
+
+    public void setQuarantineMaxTime(int quarantineMaxTime) {
+        this.quarantineMaxTime = quarantineMaxTime;
+    }
+
+    public boolean isDrainOnStop() {
+        return drainOnStop;
+    }
+
+    public void setDrainOnStop(boolean drainOnStop) {
+        this.drainOnStop = drainOnStop;
+    }
+
+    public double getPhiThreshold() {
+        return phiThreshold;
+    }
+
+    public void setPhiThreshold(double phiThreshold) {
+        this.phiThreshold = phiThreshold;
+    }
+
+    public int getPhiMinStdDeviation() {
+        return phiMinStdDeviation;
+    }
+
+    public void setPhiMinStdDeviation(int phiMinStdDeviation) {
+        this.phiMinStdDeviation = phiMinStdDeviation;
+    }
+
+    public String getSchemaLayout() {
+        return schemaLayout;
+    }
+
+    public void setSchemaLayout(String schemaLayout) {
+        this.schemaLayout = schemaLayout;
+    }
+
+    public String getDialect() {
+        return dialect;
+    }
+
+    public void setDialect(String dialect) {
+        this.dialect = dialect;
+    }
+
+    public boolean isPinnedConnection() {
+        return pinnedConnection;
+    }
+
+    public void setPinnedConnection(boolean pinnedConnection) {
+        this.pinnedConnection = pinnedConnection;
+    }
+
+    public int getHeartBeatInterval() {
+        return heartBeatInterval;
+    }
+
+    public void setHeartBeatInterval(int heartBeatInterval) {
+        this.heartBeatInterval = heartBeatInterval;
+    }
+
+    public String getReadDataSources() {
+        return readDataSources;
+    }
+
+    public void setReadDataSources(String readDataSources) {
+        this.readDataSources = readDataSources;
+    }
+
+    public boolean isHedgedReads() {
+        return hedgedReads;
+    }
+
+    public void setHedgedReads(boolean hedgedReads) {
+        this.hedgedReads = hedgedReads;
+    }
+
+    public int getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public void setHedgePercentile(int hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public String getMetricsReporter() {
+        return metricsReporter;
+    }
+
+    public void setMetricsReporter(String metricsReporter) {
+        this.metricsReporter = metricsReporter;
+    }
+
+    public int getMetricsReportInterval() {
+        return metricsReportInterval;
+    }
+
+    public void setMetricsReportInterval(int metricsReportInterval) {
+        this.metricsReportInterval = metricsReportInterval;
+    }
+
     public String getDataSource() {
         return dataSource;
     }
@@ -45,7 +45,10 @@ public class DataBaseDiscoveryAgentFactory extends DiscoveryAgentFactory {
 
             DataBaseDiscoveryAgent dba = new DataBaseDiscoveryAgent();
 
-            // allow MDA's params to be set via query arguments
+            // URI host is the broker group (e.g., multicastdb://production?dataSource=myDataSource), no host is group default
+            dba.setGroup((uri.getHost() != null) ? uri.getHost() : uri.getAuthority());
+
+            // allow MDA's params to be set via query arguments, group option override URI host
             // (e.g., multicastdb://default?dataSource=myDataSource
             Map<String, String> options = URISupport.parseParameters(uri);
             IntrospectionSupport.setProperties(dba, options);
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of a DataBaseDiscoveryAgent, data base values are the ones of its hub.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+public class DataBaseDiscoveryAgentView implements DataBaseDiscoveryAgentViewMBean {
+
+    private final DataBaseDiscoveryAgent agent;
+
+    public DataBaseDiscoveryAgentView(DataBaseDiscoveryAgent agent) {
+        this.agent = agent;
+    }
+
+    public int getBrokerCount() {
+        return agent.getBrokers().size();
+    }
+
+    public long getAddCount() {
+        return agent.getAddCount();
+    }
+
+    public long getRemoveCount() {
+        return agent.getRemoveCount();
+    }
+
+    public int getQuarantinedCount() {
+        return agent.getQuarantinedCount();
+    }
+
+    public int getNotifierQueueDepth() {
+        return agent.getNotifierQueueDepth();
+    }
+
+    public long getScanCount() {
+        DiscoveryMetrics metrics = agent.getHubMetrics();
+        return (metrics == null) ? 0 : metrics.getScans().getCount();
+    }
+
+    public long getScanFailureCount() {
+        DiscoveryMetrics metrics = agent.getHubMetrics();
+        return (metrics == null) ? 0 : metrics.getScanFailures();
+    }
+
+    public String getScanLatency() {
+        DiscoveryMetrics metrics = agent.getHubMetrics();
+        return (metrics == null) ? null : metrics.getScans().toString();
+    }
+
+    public long getHeartBeatFailureCount() {
+        DiscoveryMetrics metrics = agent.getHubMetrics();
+        return (metrics == null) ? 0 : metrics.getHeartBeatFailures();
+    }
+
+    public long getOperationErrorCount() {
+        DiscoveryMetrics metrics = agent.getHubMetrics();
+        return (metrics == null) ? 0 : metrics.getOperationErrors();
+    }
+
+    public String[] getOperationLatencies() {
+        List<String> result = new ArrayList<String>();
+        DiscoveryMetrics metrics = agent.getHubMetrics();
+        if (metrics != null) {
+            for (Map.Entry<String, LatencyHistogram> entry : metrics.getOperations().entrySet()) {
+                result.add(entry.getKey() + " : " + entry.getValue());
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    public int getOpenCircuitCount() {
+        return agent.getOpenCircuitCount();
+    }
+
+}
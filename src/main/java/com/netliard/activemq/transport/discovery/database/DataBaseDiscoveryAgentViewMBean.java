@@ -0,0 +1,65 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import org.apache.activemq.broker.jmx.MBeanInfo;
+
+/**
+ * JMX view of a DataBaseDiscoveryAgent. Latencies are in ms.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+public interface DataBaseDiscoveryAgentViewMBean {
+
+    @MBeanInfo("Number of known brokers, local one included")
+    int getBrokerCount();
+
+    @MBeanInfo("Number of broker add events")
+    long getAddCount();
+
+    @MBeanInfo("Number of broker remove events")
+    long getRemoveCount();
+
+    @MBeanInfo("Number of failed brokers not added again until the end of their quarantine")
+    int getQuarantinedCount();
+
+    @MBeanInfo("Number of events waiting to be sent to listener")
+    int getNotifierQueueDepth();
+
+    @MBeanInfo("Number of broker scans")
+    long getScanCount();
+
+    @MBeanInfo("Number of broker scans failed on data base error")
+    long getScanFailureCount();
+
+    @MBeanInfo("Scan latency : count, mean, p50, p99 and max")
+    String getScanLatency();
+
+    @MBeanInfo("Number of failed heartbeats")
+    long getHeartBeatFailureCount();
+
+    @MBeanInfo("Number of failed data base operations")
+    long getOperationErrorCount();
+
+    @MBeanInfo("Latency of each data base operation")
+    String[] getOperationLatencies();
+
+    @MBeanInfo("Number of DataSources not called because of errors")
+    int getOpenCircuitCount();
+
+}
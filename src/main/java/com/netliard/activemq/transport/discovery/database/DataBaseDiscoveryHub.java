@@ -0,0 +1,585 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netliard.SpringHook;
+
+/**
+ * Data base work of discovery agents : one scan and one batched heartbeat for all agents attached to the hub, scan result is given to each agent.
+ * An agent with sharedHub option use the hub of its DataSource, shared with all agents of the JVM using the same DataSource, else it have its own
+ * hub. Scan and heartbeat options are read from the first attached agent.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+public final class DataBaseDiscoveryHub {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(DataBaseDiscoveryHub.class);
+
+    /**
+     * Max number of batches by reaper run.
+     */
+    private static final int REAPER_MAX_BATCHES = 10;
+
+    /**
+     * Shared hubs by DataSource name and group.
+     */
+    private static final Map<String, DataBaseDiscoveryHub> SHARED_HUBS = new HashMap<String, DataBaseDiscoveryHub>();
+
+    /**
+     * Key in shared hubs, null if not shared.
+     */
+    private final String key;
+
+    /**
+     * Name of hub.
+     */
+    private final String name;
+
+    /**
+     * Number of agents using this hub, guarded by SHARED_HUBS.
+     */
+    private int references;
+
+    /**
+     * Attached agents, the first one give options.
+     */
+    private final List<DataBaseDiscoveryAgent> agents = new CopyOnWriteArrayList<DataBaseDiscoveryAgent>();
+
+    /**
+     * Data base access of agents.
+     */
+    private final DataSource dataSource;
+
+    /**
+     * JDBC link with data base, generic until the dialect is known. Replaced with hub and scan locks.
+     */
+    private volatile JDBCAdapter adapter;
+
+    /**
+     * Dialect is set or was detected, guarded by hub lock.
+     */
+    private boolean dialectKnown;
+
+    /**
+     * Live brokers read from data base.
+     */
+    private final BrokerScanner scanner = new BrokerScanner();
+
+    /**
+     * Data base metrics.
+     */
+    private final DiscoveryMetrics metrics = new DiscoveryMetrics();
+
+    /**
+     * Define if hub is started or not.
+     */
+    private volatile boolean started;
+
+    /**
+     * Next scan.
+     */
+    private ScheduledFuture<?> scanFuture;
+
+    /**
+     * Next heartbeat.
+     */
+    private ScheduledFuture<?> heartBeatFuture;
+
+    /**
+     * Lock of scanner, taken by scans but not by heartbeats so a slow scan never delay a lease renewal.
+     */
+    private final Object scanLock = new Object();
+
+    /**
+     * Lock of scan scheduling.
+     */
+    private final Object scheduleLock = new Object();
+
+    /**
+     * Current time in ms between 2 scan, between minScanInterval and maxScanInterval.
+     */
+    private long currentScanInterval;
+
+    /**
+     * Random used for jitter.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Start time of the last reaper run.
+     */
+    private long lastReap;
+
+    /**
+     * Last heartbeat failed, local brokers may have expired for the others.
+     */
+    private boolean heartBeatLost;
+
+    private DataBaseDiscoveryHub(String key, DataBaseDiscoveryAgent config) {
+        this.key = key;
+        this.name = (key == null) ? config.toString() : key;
+        // no data base access here, hub is created with the lock of shared hubs
+        dataSource = (DataSource) SpringHook.getBean(config.getDataSource());
+        dialectKnown = config.getDialect() != null;
+        adapter = createAdapter(config, config.getDialect());
+    }
+
+    private JDBCAdapter createAdapter(DataBaseDiscoveryAgent config, String dialect) {
+        JDBCAdapter created = JDBCAdapterFactory.createDialectAdapter(dataSource, dialect);
+        created.setGroup(config.getGroup());
+        created.setMaxDelay(config.getMaxDelay());
+        created.setSchemaLayout(config.getSchemaLayout());
+        created.setPinnedConnection(config.isPinnedConnection());
+        created.setFetchSize(config.getFetchSize());
+        created.setMetrics(metrics);
+        created.setReadDataSources(getDataSources(config.getReadDataSources()));
+        created.setHedgedReads(config.isHedgedReads());
+        created.setHedgePercentile(config.getHedgePercentile());
+        created.setConnectTimeout(config.getConnectTimeout());
+        created.setQueryTimeout(config.getQueryTimeout());
+        created.setUpdateTimeout(config.getUpdateTimeout());
+        created.setBreakerFailureThreshold(config.getBreakerFailureThreshold());
+        created.setBreakerOpenTime(config.getBreakerOpenTime());
+        return created;
+    }
+
+    /**
+     * Use the dialect of the data base once it answer, generic adapter is used until then. Detection wait at most connectTimeout and is tried
+     * again by each heartbeat while the data base don't answer.
+     * 
+     * @return true if dialect was just detected
+     */
+    private boolean detectDialect(DataBaseDiscoveryAgent config) {
+        if (dialectKnown || config == null) {
+            return false;
+        }
+        String dialect = JDBCAdapterFactory.getDialect(dataSource, config.getConnectTimeout());
+        if (dialect == null) {
+            return false;
+        }
+        dialectKnown = true;
+
+        JDBCAdapter detected = createAdapter(config, dialect);
+        if (detected.getClass() != adapter.getClass()) {
+            synchronized (scanLock) {
+                adapter.close();
+                adapter = detected;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get DataSources from a comma separated list of spring bean names.
+     */
+    private static List<DataSource> getDataSources(String beanNames) {
+        List<DataSource> result = new ArrayList<DataSource>();
+        if (beanNames != null) {
+            for (String beanName : beanNames.split(",")) {
+                if (beanName.trim().length() > 0) {
+                    result.add((DataSource) SpringHook.getBean(beanName.trim()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Attach an agent to its hub, creating the hub if needed. Local broker is registered and agent get the current brokers.
+     * 
+     * @param agent
+     *            started agent
+     * @return hub of agent
+     */
+    static DataBaseDiscoveryHub attach(DataBaseDiscoveryAgent agent) {
+        DataBaseDiscoveryHub hub;
+
+        synchronized (SHARED_HUBS) {
+            if (agent.isSharedHub()) {
+                String key = agent.getDataSource() + "/" + agent.getGroup();
+                hub = SHARED_HUBS.get(key);
+                if (hub == null) {
+                    hub = new DataBaseDiscoveryHub(key, agent);
+                    SHARED_HUBS.put(key, hub);
+                }
+            } else {
+                hub = new DataBaseDiscoveryHub(null, agent);
+            }
+            hub.references++;
+        }
+
+        hub.register(agent);
+        agent.dispatchEvents();
+        return hub;
+    }
+
+    /**
+     * Detach an agent, the last one stop the hub.
+     * 
+     * @param agent
+     *            stopped agent
+     */
+    void detach(DataBaseDiscoveryAgent agent) {
+        agents.remove(agent);
+
+        RemoteBrokerData self = agent.getLocalBroker();
+        if (self != null && agent.isDrainOnStop()) {
+            // peers see the broker removed on their next scan
+            adapter.drainBroker(self);
+            adapter.bumpGeneration();
+            LOG.info("Drain self broker : {}", self);
+        }
+
+        boolean last;
+        synchronized (SHARED_HUBS) {
+            last = --references == 0;
+            if (last && key != null) {
+                SHARED_HUBS.remove(key);
+            }
+        }
+
+        if (last) {
+            stop();
+        }
+    }
+
+    private synchronized void register(DataBaseDiscoveryAgent agent) {
+        agents.add(agent);
+
+        if (!started) {
+            detectDialect(agent);
+            adapter.initDB();
+            agent.doAdvertizeSelf(adapter);
+            synchronized (scanLock) {
+                scan(agent);
+                applyView(agent);
+            }
+
+            started = true;
+            currentScanInterval = agent.getScanInterval();
+            heartBeatFuture = schedule(heartBeatTask, getHeartBeatPeriod(agent));
+            scheduleScan(currentScanInterval);
+        } else {
+            agent.doAdvertizeSelf(adapter);
+            synchronized (scanLock) {
+                applyView(agent);
+            }
+        }
+    }
+
+    /**
+     * Stop tasks and release data base connection. A running task is finished before.
+     */
+    private synchronized void stop() {
+        synchronized (scanLock) {
+            started = false;
+        }
+        synchronized (scheduleLock) {
+            if (scanFuture != null) {
+                scanFuture.cancel(false);
+            }
+            if (heartBeatFuture != null) {
+                heartBeatFuture.cancel(false);
+            }
+        }
+        adapter.close();
+    }
+
+    /**
+     * Agent giving options.
+     */
+    private DataBaseDiscoveryAgent getConfig() {
+        try {
+            return agents.get(0);
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Heartbeat of local brokers and old rows cleanup. Heartbeat is a lease renewal : its period depend on maxDelay, not on scan interval. Add
+     * event of a local broker registered again is given to its listener by the next scan, so heartbeat never wait for listeners.
+     */
+    private final Runnable heartBeatTask = new Runnable() {
+        public void run() {
+            synchronized (DataBaseDiscoveryHub.this) {
+                if (!started) {
+                    return;
+                }
+                try {
+                    if (detectDialect(getConfig())) {
+                        // data base didn't answer at start, its schema is not checked yet
+                        adapter.initDB();
+                    }
+                    heartBeat();
+                    reapBroker();
+                } catch (RuntimeException e) {
+                    LOG.warn("Heartbeat error : " + e.getMessage(), e);
+                } finally {
+                    DataBaseDiscoveryAgent config = getConfig();
+                    if (config != null) {
+                        heartBeatFuture = schedule(this, getHeartBeatPeriod(config));
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Scan of brokers. Interval grow while nothing change and is reset to minimum after a change. Scan don't take the hub lock, so it never
+     * delay heartbeats.
+     */
+    private final Runnable scanTask = new Runnable() {
+        public void run() {
+            DataBaseDiscoveryAgent config = getConfig();
+            boolean changed = false;
+
+            synchronized (scanLock) {
+                if (!started || config == null) {
+                    return;
+                }
+                try {
+                    changed = scan(config);
+                    for (DataBaseDiscoveryAgent agent : agents) {
+                        applyView(agent);
+                    }
+                } catch (RuntimeException e) {
+                    LOG.warn("Scan error : " + e.getMessage(), e);
+                }
+            }
+
+            // listeners may be slow : events are given out of scan lock
+            for (DataBaseDiscoveryAgent agent : agents) {
+                agent.dispatchEvents();
+            }
+
+            synchronized (scheduleLock) {
+                if (changed) {
+                    currentScanInterval = getScanIntervalFloor(config);
+                } else {
+                    currentScanInterval = Math.min(currentScanInterval * 3 / 2, getScanIntervalCeiling(config));
+                }
+                scheduleScan(currentScanInterval);
+            }
+        }
+    };
+
+    private boolean scan(DataBaseDiscoveryAgent config) {
+        long start = System.nanoTime();
+        boolean changed = scanner.scan(adapter, config);
+        metrics.recordScan(start, scanner.isLastScanOk());
+        return changed;
+    }
+
+    /**
+     * Check if brokers were read at least once.
+     * 
+     * @return true after the first successful scan
+     */
+    boolean isLoaded() {
+        return scanner.isLoaded();
+    }
+
+    /**
+     * Give scan result to an agent. Nothing is given before data base answer, so agent keep brokers of its snapshot.
+     */
+    private void applyView(DataBaseDiscoveryAgent agent) {
+        if (scanner.isLoaded()) {
+            agent.applyView(scanner.getView(), scanner.getVersion());
+        }
+    }
+
+    /**
+     * Register new local brokers and write heartbeat of the others in one batch.
+     */
+    private void heartBeat() {
+        List<RemoteBrokerData> selfData = new ArrayList<RemoteBrokerData>(agents.size());
+
+        for (DataBaseDiscoveryAgent agent : agents) {
+            RemoteBrokerData data = agent.doAdvertizeSelf(adapter);
+            if (data != null) {
+                data.updateHeartBeat();
+                selfData.add(data);
+            }
+        }
+
+        if (!selfData.isEmpty()) {
+            boolean lost = !adapter.updateBrokers(selfData);
+            if (heartBeatLost && !lost) {
+                // rows may have expired during the outage : new change version so incremental scans see them again
+                for (RemoteBrokerData data : selfData) {
+                    adapter.registerBroker(data);
+                }
+                adapter.bumpGeneration();
+            }
+            if (lost) {
+                metrics.recordHeartBeatFailure();
+            }
+            heartBeatLost = lost;
+        }
+    }
+
+    /**
+     * Delete old broker rows by batches if a local broker own the reaper lease.
+     */
+    private void reapBroker() {
+        DataBaseDiscoveryAgent config = getConfig();
+        long now = System.currentTimeMillis();
+        if (config == null || !config.isReaper() || now - lastReap < config.getReaperInterval()) {
+            return;
+        }
+        lastReap = now;
+
+        String owner = null;
+        for (DataBaseDiscoveryAgent agent : agents) {
+            if (agent.isServiceRegistered()) {
+                owner = agent.getLocalBrokerKey();
+                break;
+            }
+        }
+
+        // lease is kept by renewing it on each run, so it must last more than one interval
+        if (owner == null || !adapter.acquireLease(JDBCAdapter.REAPER_LEASE, owner, 2L * config.getReaperInterval())) {
+            return;
+        }
+
+        // never delete a row an incremental scan may still look at
+        long dateMax = now - Math.max(config.getReaperRetention(), 2L * config.getMaxDelay());
+        int deleted = 0;
+        for (int batch = 0; batch < REAPER_MAX_BATCHES; batch++) {
+            int count = adapter.deleteOldBroker(dateMax, config.getReaperBatchSize());
+            deleted += count;
+            if (count < config.getReaperBatchSize()) {
+                break;
+            }
+        }
+        if (deleted > 0) {
+            LOG.info("Reaper deleted {} old broker", deleted);
+        }
+    }
+
+    /**
+     * Schedule a task with jitter. Timer only start the task on I/O executor, so blocking JDBC calls never delay other hubs.
+     * 
+     * @param task
+     *            task to run
+     * @param delay
+     *            delay in ms before jitter
+     * @return scheduled task or null if hub is stopped
+     */
+    private ScheduledFuture<?> schedule(final Runnable task, long delay) {
+        DataBaseDiscoveryAgent config = getConfig();
+        if (!started || config == null) {
+            return null;
+        }
+        long jittered = delay;
+        if (config.getJitter() > 0) {
+            jittered = (long) (delay * (1 + config.getJitter() * (2 * random.nextDouble() - 1)));
+        }
+        try {
+            return DiscoveryExecutors.getTimer().schedule(new Runnable() {
+                public void run() {
+                    try {
+                        DiscoveryExecutors.getIo().execute(task);
+                    } catch (RuntimeException e) {
+                        LOG.debug("Executor stopped : " + e);
+                    }
+                }
+            }, Math.max(0, jittered), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // hub stopped
+            return null;
+        }
+    }
+
+    private void scheduleScan(long delay) {
+        synchronized (scheduleLock) {
+            scanFuture = schedule(scanTask, delay);
+        }
+    }
+
+    /**
+     * Reset scan interval to minimum and scan sooner if next scan is later.
+     */
+    void tightenScan() {
+        DataBaseDiscoveryAgent config = getConfig();
+        if (config == null) {
+            return;
+        }
+        synchronized (scheduleLock) {
+            currentScanInterval = getScanIntervalFloor(config);
+            if (scanFuture != null && scanFuture.getDelay(TimeUnit.MILLISECONDS) > currentScanInterval && scanFuture.cancel(false)) {
+                scheduleScan(currentScanInterval);
+            }
+        }
+    }
+
+    /**
+     * Time between 2 heartbeat, so a lease is renewed twice before it expire even with jitter.
+     */
+    private static long getHeartBeatPeriod(DataBaseDiscoveryAgent config) {
+        if (config.getHeartBeatInterval() > 0) {
+            return config.getHeartBeatInterval();
+        }
+        return Math.max(1, config.getMaxDelay() / 3);
+    }
+
+    private static long getScanIntervalFloor(DataBaseDiscoveryAgent config) {
+        return Math.min(config.getMinScanInterval(), config.getScanInterval());
+    }
+
+    private static long getScanIntervalCeiling(DataBaseDiscoveryAgent config) {
+        return Math.max(config.getMaxScanInterval(), config.getScanInterval());
+    }
+
+    DiscoveryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get Data Base link.
+     * 
+     * @return Data Base
+     */
+    public JDBCAdapter getAdapter() {
+        return adapter;
+    }
+
+    @Override
+    public String toString() {
+        return "DataBaseDiscoveryHub[" + name + "]";
+    }
+
+}
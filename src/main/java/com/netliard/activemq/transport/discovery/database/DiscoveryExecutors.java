@@ -0,0 +1,127 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executors shared by all discovery agents of the JVM : one timer thread only used to start tasks, and an I/O executor running blocking JDBC calls
+ * and listener notifications. The I/O executor use virtual threads when asked and available (Java 21), else pooled daemon threads. Executors are
+ * created by the first agent and stopped with the last one.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+final class DiscoveryExecutors {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(DiscoveryExecutors.class);
+
+    /**
+     * Number of users.
+     */
+    private static int references;
+
+    /**
+     * Timer starting tasks.
+     */
+    private static ScheduledExecutorService timer;
+
+    /**
+     * Executor of blocking tasks.
+     */
+    private static ExecutorService io;
+
+    private DiscoveryExecutors() {
+    }
+
+    /**
+     * Get executors, creating them for the first user.
+     * 
+     * @param virtualThreads
+     *            use virtual threads for I/O if available, only read from the first user
+     */
+    static synchronized void acquire(boolean virtualThreads) {
+        if (references++ == 0) {
+            timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("DataBaseDiscovery-timer"));
+            io = virtualThreads ? newVirtualThreadExecutor() : null;
+            if (io == null) {
+                io = Executors.newCachedThreadPool(new DaemonThreadFactory("DataBaseDiscovery-io"));
+            }
+        }
+    }
+
+    /**
+     * Release executors, the last user stop them.
+     */
+    static synchronized void release() {
+        if (--references == 0) {
+            timer.shutdownNow();
+            io.shutdownNow();
+            timer = null;
+            io = null;
+        }
+    }
+
+    static synchronized ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    static synchronized ExecutorService getIo() {
+        return io;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() by reflection so we still run on old JVM.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            LOG.info("Virtual threads not available, use platform threads : " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Named daemon threads.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable runable) {
+            Thread t = new Thread(runable, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Data base metrics of a hub : latency and errors of each JDBCAdapter operation, scans and heartbeats.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+class DiscoveryMetrics {
+
+    /**
+     * Latency of JDBC operations by name.
+     */
+    private final ConcurrentMap<String, LatencyHistogram> operations = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * Errors of JDBC operations by name.
+     */
+    private final ConcurrentMap<String, AtomicLong> operationErrors = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Latency of scans, failed ones included.
+     */
+    private final LatencyHistogram scans = new LatencyHistogram();
+
+    private final AtomicLong scanFailures = new AtomicLong();
+
+    private final AtomicLong heartBeatFailures = new AtomicLong();
+
+    /**
+     * Add a JDBC operation.
+     * 
+     * @param operation
+     *            operation name (e.g. getAllBroker)
+     * @param start
+     *            start time from System.nanoTime()
+     * @param success
+     *            false on data base error
+     */
+    public void recordOperation(String operation, long start, boolean success) {
+        getHistogram(operation).record(elapsed(start));
+        if (!success) {
+            getErrors(operation).incrementAndGet();
+        }
+    }
+
+    /**
+     * Add a scan.
+     * 
+     * @param start
+     *            start time from System.nanoTime()
+     * @param success
+     *            false on data base error
+     */
+    public void recordScan(long start, boolean success) {
+        scans.record(elapsed(start));
+        if (!success) {
+            scanFailures.incrementAndGet();
+        }
+    }
+
+    public void recordHeartBeatFailure() {
+        heartBeatFailures.incrementAndGet();
+    }
+
+    public LatencyHistogram getScans() {
+        return scans;
+    }
+
+    public long getScanFailures() {
+        return scanFailures.get();
+    }
+
+    public long getHeartBeatFailures() {
+        return heartBeatFailures.get();
+    }
+
+    public Map<String, LatencyHistogram> getOperations() {
+        return operations;
+    }
+
+    /**
+     * Get errors of all JDBC operations.
+     * 
+     * @return error count
+     */
+    public long getOperationErrors() {
+        long errors = 0;
+        for (AtomicLong count : operationErrors.values()) {
+            errors += count.get();
+        }
+        return errors;
+    }
+
+    /**
+     * Put all values in a flat map, names are dot separated (e.g. jdbc.getAllBroker.p99).
+     * 
+     * @param values
+     *            map to fill
+     */
+    public void fill(Map<String, Long> values) {
+        fill(values, "scan", scans);
+        values.put("scan.failures", getScanFailures());
+        values.put("heartbeat.failures", getHeartBeatFailures());
+        for (Map.Entry<String, LatencyHistogram> entry : operations.entrySet()) {
+            String prefix = "jdbc." + entry.getKey();
+            fill(values, prefix, entry.getValue());
+            values.put(prefix + ".errors", getErrors(entry.getKey()).get());
+        }
+    }
+
+    private static void fill(Map<String, Long> values, String prefix, LatencyHistogram histogram) {
+        values.put(prefix + ".count", histogram.getCount());
+        values.put(prefix + ".mean", histogram.getMean());
+        values.put(prefix + ".p50", histogram.getPercentile(50));
+        values.put(prefix + ".p99", histogram.getPercentile(99));
+        values.put(prefix + ".max", histogram.getMax());
+    }
+
+    private LatencyHistogram getHistogram(String operation) {
+        LatencyHistogram histogram = operations.get(operation);
+        if (histogram == null) {
+            operations.putIfAbsent(operation, new LatencyHistogram());
+            histogram = operations.get(operation);
+        }
+        return histogram;
+    }
+
+    private AtomicLong getErrors(String operation) {
+        AtomicLong errors = operationErrors.get(operation);
+        if (errors == null) {
+            operationErrors.putIfAbsent(operation, new AtomicLong());
+            errors = operationErrors.get(operation);
+        }
+        return errors;
+    }
+
+    private static long elapsed(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.util.Map;
+
+/**
+ * Receive agent metrics periodically, set with metricsReporter option (class name, public constructor without argument). Implementations may
+ * send them to a monitoring system.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+public interface DiscoveryMetricsReporter {
+
+    /**
+     * Report metrics of an agent. Called on an I/O thread, it may block.
+     * 
+     * @param agentName
+     *            local service or client name
+     * @param metrics
+     *            values by dot separated name (e.g. scan.p99, jdbc.getAllBroker.errors), latencies are in ms
+     */
+    void report(String agentName, Map<String, Long> metrics);
+
+}
@@ -1,12 +1,12 @@
 /**
  * Copyright 2011 liard
- *
+ * 
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- *
+ * 
  *     http://www.apache.org/licenses/LICENSE-2.0
- *
+ * 
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -17,11 +17,28 @@
 package com.netliard.activemq.transport.discovery.database;
 
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
@@ -31,7 +48,8 @@ import org.slf4j.LoggerFactory;
 import com.netliard.SpringHook;
 
 /**
- * First implementation of JDBC Adapter. Work with MySQL and derby, but JDBCAdapter nee to be an interface with one implementation by database (like store)
+ * Generic JDBC Adapter. Used for data base without dialect, each dialect extends it to use native SQL (like store). Dialect is choose by
+ * {@link JDBCAdapterFactory}.
  * 
  * @author Samuel Liard
  * 
@@ -44,188 +62,1962 @@ public class JDBCAdapter {
     private static final Logger LOG = LoggerFactory.getLogger(JDBCAdapter.class);
 
     /**
-     * Data base access.
+     * Row of BrokerGeneration table used for Broker table.
+     */
+    private static final String GENERATION_NAME = "Broker";
+
+    /**
+     * Last version of discovery schema.
+     */
+    protected static final int SCHEMA_VERSION = 15;
+
+    /**
+     * Schema layout with one Broker table.
+     */
+    public static final String SINGLE_LAYOUT = "single";
+
+    /**
+     * Schema layout with broker metadata in BrokerInfo and heartbeats in the narrow BrokerHeartBeat table.
+     */
+    public static final String SPLIT_LAYOUT = "split";
+
+    /**
+     * Group of brokers without explicit group, rows created before groups belong to it.
+     */
+    public static final String DEFAULT_GROUP = "default";
+
+    /**
+     * Lease of the broker deleting old rows of Broker table.
+     */
+    public static final String REAPER_LEASE = "reaper";
+
+    /**
+     * Broker state of a stopped broker, a draining row is seen as removed until the broker register again. Running brokers are 0.
+     */
+    private static final int DRAINING = 1;
+
+    /**
+     * Hedge delay in ms used until enough read latencies are known.
+     */
+    private static final long HEDGE_DEFAULT_DELAY = 100;
+
+    private static final String INSERT_BROKER = "INSERT INTO Broker (service,name,lastHeartBeat,changeVersion,groupName) VALUES(?,?,?,?,?)";
+
+    private static final String UPDATE_BROKER = "UPDATE Broker SET lastHeartBeat=? WHERE service=? AND groupName=?";
+
+    private static final String RENEW_BROKER = "UPDATE Broker SET name=?, lastHeartBeat=?, changeVersion=?, groupName=?, state=0 WHERE service=? "
+            + "AND (groupName=? OR lastHeartBeat <= ? OR state=1)";
+
+    private static final String DRAIN_BROKER = "UPDATE Broker SET state=1, changeVersion=? WHERE service=? AND groupName=?";
+
+    private static final String BUMP_GENERATION = "UPDATE BrokerGeneration SET generation=generation+1 WHERE name=?";
+
+    private static final String INSERT_GENERATION = "INSERT INTO BrokerGeneration (name,generation) VALUES(?,1)";
+
+    private static final String SELECT_DIGEST = "SELECT generation, (SELECT COUNT(*) FROM Broker WHERE groupName=? AND lastHeartBeat > ? AND state=0) FROM BrokerGeneration WHERE name=?";
+
+    private static final String SELECT_ALL_BROKER = "SELECT service,name,lastHeartBeat,changeVersion,state FROM Broker WHERE groupName=? AND lastHeartBeat > ? AND state=0";
+
+    private static final String SELECT_CHANGED_BROKER = "SELECT service,name,lastHeartBeat,changeVersion,state FROM Broker WHERE groupName=? AND changeVersion > ? AND lastHeartBeat > ?";
+
+    private static final String SELECT_EXPIRED_BROKER = "SELECT service,name,lastHeartBeat,changeVersion,state FROM Broker WHERE groupName=? AND lastHeartBeat > ? AND lastHeartBeat <= ?";
+
+    private static final String ACQUIRE_LEASE = "UPDATE BrokerLease SET owner=?, expiry=? WHERE name=? AND (owner=? OR expiry < ?)";
+
+    private static final String INSERT_LEASE = "INSERT INTO BrokerLease (name,owner,expiry) VALUES(?,?,?)";
+
+    private static final String SELECT_OLD_BROKER = "SELECT service FROM Broker WHERE groupName=? AND lastHeartBeat < ?";
+
+    private static final String DELETE_OLD_BROKER = "DELETE FROM Broker WHERE service=? AND lastHeartBeat < ?";
+
+    private static final String INSERT_INFO = "INSERT INTO BrokerInfo (name,changeVersion,groupName,id,service) VALUES(?,?,?,?,?)";
+
+    private static final String RENEW_INFO = "UPDATE BrokerInfo SET name=?, changeVersion=?, groupName=?, state=0 WHERE id=? AND service=? "
+            + "AND (groupName=? OR state=1 OR NOT EXISTS (SELECT id FROM BrokerHeartBeat h WHERE h.id=BrokerInfo.id AND h.lastHeartBeat > ?))";
+
+    private static final String DRAIN_INFO = "UPDATE BrokerInfo SET state=1, changeVersion=? WHERE id=? AND groupName=?";
+
+    private static final String INSERT_HEARTBEAT = "INSERT INTO BrokerHeartBeat (lastHeartBeat,groupName,id) VALUES(?,?,?)";
+
+    private static final String RENEW_HEARTBEAT = "UPDATE BrokerHeartBeat SET lastHeartBeat=?, groupName=? WHERE id=?";
+
+    private static final String UPDATE_HEARTBEAT = "UPDATE BrokerHeartBeat SET lastHeartBeat=? WHERE id=? AND groupName=?";
+
+    private static final String SELECT_DIGEST_SPLIT = "SELECT generation, (SELECT COUNT(*) FROM BrokerHeartBeat WHERE groupName=? AND lastHeartBeat > ?) "
+            + "FROM BrokerGeneration WHERE name=?";
+
+    private static final String SELECT_LIVE_ID = "SELECT id,lastHeartBeat FROM BrokerHeartBeat WHERE groupName=? AND lastHeartBeat > ?";
+
+    private static final String SELECT_CHANGED_INFO = "SELECT id,service,name,changeVersion,state FROM BrokerInfo WHERE groupName=? AND changeVersion > ?";
+
+    private static final String SELECT_INFO = "SELECT id,service,name,changeVersion,state FROM BrokerInfo WHERE id=?";
+
+    private static final String SELECT_CHANGED_BROKER_SPLIT = "SELECT i.service,i.name,h.lastHeartBeat,i.changeVersion,i.state FROM BrokerInfo i JOIN BrokerHeartBeat h ON h.id=i.id "
+            + "WHERE i.groupName=? AND i.changeVersion > ? AND h.lastHeartBeat > ?";
+
+    private static final String SELECT_EXPIRED_BROKER_SPLIT = "SELECT i.service,i.name,h.lastHeartBeat,i.changeVersion,i.state FROM BrokerHeartBeat h JOIN BrokerInfo i ON i.id=h.id "
+            + "WHERE h.groupName=? AND h.lastHeartBeat > ? AND h.lastHeartBeat <= ?";
+
+    private static final String SELECT_OLD_ID = "SELECT id FROM BrokerHeartBeat WHERE groupName=? AND lastHeartBeat < ?";
+
+    private static final String DELETE_OLD_HEARTBEAT = "DELETE FROM BrokerHeartBeat WHERE id=? AND lastHeartBeat < ?";
+
+    private static final String DELETE_OLD_INFO = "DELETE FROM BrokerInfo WHERE id=? AND NOT EXISTS "
+            + "(SELECT id FROM BrokerHeartBeat WHERE BrokerHeartBeat.id=BrokerInfo.id)";
+
+    /**
+     * Data base access, used for schema, writes and reads without replica.
      */
     DataSource ds;
 
+    /**
+     * Link of the write DataSource.
+     */
+    private volatile Link writeLink;
+
+    /**
+     * Links of read replicas, broker scans use them when not empty.
+     */
+    private volatile List<Link> readLinks = Collections.emptyList();
+
+    /**
+     * Next replica to read.
+     */
+    private final AtomicInteger nextReader = new AtomicInteger();
+
+    /**
+     * Send a slow read to another replica, the first answer is used.
+     */
+    private boolean hedgedReads = false;
+
+    /**
+     * Percentile of recent read latencies waited before a hedged read.
+     */
+    private int hedgePercentile = 95;
+
+    /**
+     * Recent latencies of replica reads.
+     */
+    private final LatencyWindow readLatencies = new LatencyWindow(128);
+
+    /**
+     * Keep connections and their prepared statements open between calls, one for writes and one for scans.
+     */
+    private boolean pinnedConnection = false;
+
+    /**
+     * Number of rows fetched by round trip of broker queries, 0 for driver default.
+     */
+    private int fetchSize = 0;
+
+    /**
+     * Latency and errors of operations, null for no metrics.
+     */
+    private volatile DiscoveryMetrics metrics;
+
+    /**
+     * Max time in ms to get a connection, 0 for no limit. DataSources are shared with the application so they are never changed : connection is
+     * got on I/O executor and the caller stop waiting after this time.
+     */
+    private int connectTimeout = 0;
+
+    /**
+     * Max time in ms of a query, 0 for no limit.
+     */
+    private int queryTimeout = 0;
+
+    /**
+     * Max time in ms of an update, 0 for no limit.
+     */
+    private int updateTimeout = 0;
+
+    /**
+     * Consecutive failures opening the circuit of a DataSource, 0 to never open it.
+     */
+    private int breakerFailureThreshold = 0;
+
+    /**
+     * Time in ms without call to a DataSource with open circuit.
+     */
+    private int breakerOpenTime = 10000;
+
+    /**
+     * Dialect upsert was rejected by the data base (version older than the dialect), update then insert is used.
+     */
+    private volatile boolean upsertRejected = false;
+
+    /**
+     * Group of brokers seen by this adapter, several clusters may share the same data base with different groups.
+     */
+    private String group = DEFAULT_GROUP;
+
+    /**
+     * Max time in ms between 2 heartbeats of a live broker. Broker rows are keyed by service only, so registration never take over the live row
+     * of a broker of another group.
+     */
+    private int maxDelay = 25000;
+
+    /**
+     * Use BrokerInfo and BrokerHeartBeat tables instead of Broker table.
+     */
+    private boolean split = false;
+
+    /**
+     * Metadata of brokers seen live by the last split layout scan, by id.
+     */
+    private final Map<Long, RemoteBrokerData> infos = new HashMap<Long, RemoteBrokerData>();
+
+    /**
+     * Liveness lower bound of the last split layout scan, next scan read BrokerInfo rows changed since it. Like previousDateMin of incremental
+     * scans it come from the local clock, so a broker with a clock running ahead don't hide changes of the others. Guarded by infos.
+     */
+    private long infoDateMin = -1;
+
+    public JDBCAdapter() {
+    }
+
     public JDBCAdapter(String beanName) {
-        ds = (DataSource) SpringHook.getBean(beanName);
+        setDataSource((DataSource) SpringHook.getBean(beanName));
     }
 
     /**
-     * Create Broker table.
+     * One DataSource with its pinned connections and circuit breaker. Writes (heartbeat, register, lease) and scans have their own pinned
+     * connection, so a long scan don't delay a heartbeat.
      */
-    public void initDB() {
-        Statement stmt = null;
-        Connection conn = null;
+    private class Link {
+        private final DataSource dataSource;
 
-        try {
-            conn = ds.getConnection();
-            stmt = conn.createStatement();
+        private final CircuitBreaker breaker;
 
-            String createString = "create table Broker " + "(service VARCHAR(100) NOT NULL, name VARCHAR(100), lastHeartBeat BIGINT, "
-                    + "primary key(service))";
+        /**
+         * Connection kept open in pinned mode for writes.
+         */
+        private final PinnedConnection writer = new PinnedConnection();
 
-            stmt.executeUpdate(createString);
+        /**
+         * Connection kept open in pinned mode for scans.
+         */
+        private final PinnedConnection reader = new PinnedConnection();
 
-        } catch (Exception e) {
-            LOG.trace("Create table error : " + e.getMessage());
-        } finally {
+        Link(DataSource dataSource) {
+            this.dataSource = dataSource;
+            this.breaker = new CircuitBreaker(String.valueOf(dataSource), breakerFailureThreshold, breakerOpenTime);
+        }
+
+        /**
+         * Run a write statement, fail at once if the circuit of the DataSource is open.
+         * 
+         * @param sql
+         *            SQL with ? parameters
+         * @param callback
+         *            work to do with the statement
+         * @return callback result
+         * @throws SQLException
+         *             on data base error or open circuit
+         */
+        <T> T execute(String sql, StatementCallback<T> callback) throws SQLException {
+            return execute(sql, callback, writer);
+        }
+
+        /**
+         * Run a scan query, fail at once if the circuit of the DataSource is open.
+         * 
+         * @param sql
+         *            SQL query with ? parameters
+         * @param callback
+         *            work to do with the statement
+         * @return callback result
+         * @throws SQLException
+         *             on data base error or open circuit
+         */
+        <T> T read(String sql, StatementCallback<T> callback) throws SQLException {
+            return execute(sql, callback, reader);
+        }
+
+        private <T> T execute(String sql, StatementCallback<T> callback, PinnedConnection pinned) throws SQLException {
+            if (!breaker.allowRequest()) {
+                throw new SQLException("Data base unavailable, circuit open : " + dataSource);
+            }
+
+            boolean healthy = false;
             try {
-                if (stmt != null) {
-                    stmt.close();
+                T result = doExecute(sql, callback, pinned);
+                healthy = true;
+                return result;
+            } catch (SQLException e) {
+                healthy = isAnswer(e);
+                throw e;
+            } finally {
+                if (healthy) {
+                    breaker.onSuccess();
+                } else {
+                    breaker.onFailure();
                 }
-            } catch (Exception e) {
-                LOG.error("Close Statement error", e);
             }
+        }
+
+        /**
+         * Run a statement on a new connection or on a pinned connection.
+         */
+        private <T> T doExecute(String sql, StatementCallback<T> callback, PinnedConnection pinned) throws SQLException {
+            if (pinnedConnection) {
+                return pinned.execute(dataSource, sql, callback);
+            }
+
+            Connection conn = null;
+            PreparedStatement stmt = null;
+
             try {
-                if (conn != null) {
-                    conn.close();
-                }
-            } catch (Exception e) {
-                LOG.error("Close Connection error", e);
+                conn = getConnection(dataSource);
+                stmt = conn.prepareStatement(sql);
+                applyTimeout(stmt, sql);
+                return callback.doInStatement(stmt);
+            } finally {
+                JDBCAdapter.this.close(stmt, conn);
             }
         }
 
+        void close() {
+            writer.close();
+            reader.close();
+        }
     }
 
     /**
-     * Add a new broker.
-     * 
-     * @param data
-     *            Broker data
+     * Connection kept open in pinned mode with its prepared statements, used by one statement at a time.
      */
-    public void addBroker(RemoteBrokerData data) {
-
-        Statement stmt = null;
-        Connection conn = null;
-
-        try {
-            conn = ds.getConnection();
-            stmt = conn.createStatement();
-
-            String createString = "INSERT INTO Broker (service,name,lastHeartBeat) VALUES('" + data.getService() + "','" + data.getBrokerName() + "',"
-                    + data.getLastHeartBeat() + ")";
+    private class PinnedConnection {
+        private Connection connection;
 
-            stmt.executeUpdate(createString);
+        /**
+         * Prepared statements of the connection by SQL.
+         */
+        private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
 
-        } catch (Exception e) {
-            LOG.trace("Add broker error : " + e.getMessage());
-
-        } finally {
+        /**
+         * Run a statement, a failure on a broken connection is retried once on a new connection.
+         */
+        synchronized <T> T execute(DataSource dataSource, String sql, StatementCallback<T> callback) throws SQLException {
             try {
-                if (stmt != null) {
-                    stmt.close();
+                return callback.doInStatement(prepare(dataSource, sql));
+            } catch (SQLException e) {
+                if (isValid()) {
+                    throw e;
                 }
-            } catch (Exception e) {
-                LOG.error("Close Statement error", e);
+                LOG.debug("Pinned connection lost, reconnect : " + e.getMessage());
+                close();
+                return callback.doInStatement(prepare(dataSource, sql));
+            }
+        }
+
+        /**
+         * Get a cached statement, opening the connection if needed.
+         */
+        private PreparedStatement prepare(DataSource dataSource, String sql) throws SQLException {
+            if (connection == null) {
+                connection = getConnection(dataSource);
+            }
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(sql);
+                applyTimeout(stmt, sql);
+                statements.put(sql, stmt);
             }
+            return stmt;
+        }
+
+        private boolean isValid() {
             try {
-                if (conn != null) {
-                    conn.close();
-                }
-            } catch (Exception e) {
-                LOG.error("Close Connection error", e);
+                return connection != null && connection.isValid(1);
+            } catch (Throwable e) {
+                // old driver without JDBC 4 support
+                return false;
             }
         }
 
+        synchronized void close() {
+            for (PreparedStatement stmt : statements.values()) {
+                JDBCAdapter.this.close(stmt, null);
+            }
+            statements.clear();
+            JDBCAdapter.this.close(null, connection);
+            connection = null;
+        }
     }
 
     /**
-     * Update lastHeartBeat time for a broker.
+     * Work to do with a prepared statement.
      * 
-     * @param data
-     *            Broker data
+     * @param <T>
+     *            result type
      */
-    public void updateBroker(RemoteBrokerData data) {
+    private interface StatementCallback<T> {
+        T doInStatement(PreparedStatement stmt) throws SQLException;
+    }
 
-        Statement stmt = null;
-        Connection conn = null;
+    /**
+     * Insert a broker.
+     */
+    private class InsertBrokerCallback implements StatementCallback<Integer> {
+        private final RemoteBrokerData data;
 
-        try {
-            conn = ds.getConnection();
-            stmt = conn.createStatement();
+        InsertBrokerCallback(RemoteBrokerData data) {
+            this.data = data;
+        }
 
-            String createString = "UPDATE Broker SET lastHeartBeat=" + data.getLastHeartBeat() + " WHERE service='" + data.getService() + "'";
+        public Integer doInStatement(PreparedStatement stmt) throws SQLException {
+            stmt.setString(1, data.getService());
+            stmt.setString(2, data.getBrokerName());
+            stmt.setLong(3, data.getLastHeartBeat());
+            stmt.setLong(4, data.getLastHeartBeat());
+            stmt.setString(5, group);
+            return stmt.executeUpdate();
+        }
+    }
 
-            stmt.executeUpdate(createString);
+    /**
+     * Update name, lastHeartBeat, change version and group of a broker, unless its row is live in another group.
+     */
+    private class RenewBrokerCallback implements StatementCallback<Integer> {
+        private final RemoteBrokerData data;
+        private final long dateMin;
 
-        } catch (Exception e) {
-            LOG.trace("Update broker error : " + e.getMessage());
-        } finally {
-            try {
-                if (stmt != null) {
-                    stmt.close();
-                }
-            } catch (Exception e) {
-                LOG.error("Close Statement error", e);
-            }
-            try {
-                if (conn != null) {
-                    conn.close();
-                }
-            } catch (Exception e) {
-                LOG.error("Close Connection error", e);
-            }
+        RenewBrokerCallback(RemoteBrokerData data, long dateMin) {
+            this.data = data;
+            this.dateMin = dateMin;
         }
 
+        public Integer doInStatement(PreparedStatement stmt) throws SQLException {
+            stmt.setString(1, data.getBrokerName());
+            stmt.setLong(2, data.getLastHeartBeat());
+            stmt.setLong(3, data.getLastHeartBeat());
+            stmt.setString(4, group);
+            stmt.setString(5, data.getService());
+            stmt.setString(6, group);
+            stmt.setLong(7, dateMin);
+            return stmt.executeUpdate();
+        }
     }
 
     /**
-     * Get all broker list.
-     * 
-     * @param maxDelay
-     *            minimum time in ms of last broker heartBeat
-     * @return list of broker data
+     * Insert or update metadata of a broker in split layout, insert and update statements have the same first parameters. Update also get the
+     * liveness bound of rows of other groups.
      */
-    public Collection<RemoteBrokerData> getAllBroker(long maxDelay) {
+    private class BrokerInfoCallback implements StatementCallback<Integer> {
+        private final RemoteBrokerData data;
+        private final Long dateMin;
 
-        Collection<RemoteBrokerData> result = new ArrayList<RemoteBrokerData>();
+        BrokerInfoCallback(RemoteBrokerData data, Long dateMin) {
+            this.data = data;
+            this.dateMin = dateMin;
+        }
 
-        Statement stmt = null;
-        Connection conn = null;
-        ResultSet results = null;
+        public Integer doInStatement(PreparedStatement stmt) throws SQLException {
+            stmt.setString(1, data.getBrokerName());
+            stmt.setLong(2, data.getLastHeartBeat());
+            stmt.setString(3, group);
+            stmt.setLong(4, getBrokerId(data.getService()));
+            stmt.setString(5, data.getService());
+            if (dateMin != null) {
+                stmt.setString(6, group);
+                stmt.setLong(7, dateMin);
+            }
+            return stmt.executeUpdate();
+        }
+    }
 
-        try {
-            conn = ds.getConnection();
-            stmt = conn.createStatement();
-            long dateMin = System.currentTimeMillis() - maxDelay;
-            results = stmt.executeQuery("SELECT service,name FROM Broker WHERE lastHeartBeat > " + dateMin);
+    /**
+     * Insert or update heartbeat and group of a broker in split layout, insert and update statements have the same parameters.
+     */
+    private class BrokerHeartBeatCallback implements StatementCallback<Integer> {
+        private final RemoteBrokerData data;
 
-            while (results.next()) {
-                String service = results.getString(1);
-                String name = results.getString(2);
+        BrokerHeartBeatCallback(RemoteBrokerData data) {
+            this.data = data;
+        }
 
-                RemoteBrokerData data = new RemoteBrokerData(name, service);
-                result.add(data);
+        public Integer doInStatement(PreparedStatement stmt) throws SQLException {
+            stmt.setLong(1, data.getLastHeartBeat());
+            stmt.setString(2, group);
+            stmt.setLong(3, getBrokerId(data.getService()));
+            return stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Row of BrokerInfo table.
+     */
+    private static class BrokerInfo {
+        private final long id;
+        private final RemoteBrokerData data;
+
+        BrokerInfo(ResultSet results) throws SQLException {
+            this.id = results.getLong(1);
+            this.data = new RemoteBrokerData(results.getString(3), results.getString(2), 0, results.getLong(4), results.getInt(5) == DRAINING);
+        }
+    }
+
+    /**
+     * Broker query of the adapter group with long parameters and fetch size.
+     */
+    private abstract class BrokerQueryCallback<T> implements StatementCallback<T> {
+        private final long[] params;
+
+        BrokerQueryCallback(long... params) {
+            this.params = params;
+        }
+
+        public T doInStatement(PreparedStatement stmt) throws SQLException {
+            stmt.setString(1, group);
+            for (int i = 0; i < params.length; i++) {
+                stmt.setLong(i + 2, params[i]);
             }
+            applyFetchSize(stmt);
 
-        } catch (SQLException e) {
-            LOG.warn("SQL error to get all broker : " + e.getMessage());
-        } finally {
+            ResultSet results = stmt.executeQuery();
             try {
-                if (results != null) {
-                    results.close();
-                }
-            } catch (Exception e) {
-                LOG.error("Close ResultSet error", e);
+                return read(results);
+            } finally {
+                results.close();
             }
-            try {
-                if (stmt != null) {
-                    stmt.close();
-                }
-            } catch (Exception e) {
-                LOG.error("Close Statement error", e);
+        }
+
+        protected abstract T read(ResultSet results) throws SQLException;
+    }
+
+    /**
+     * Create or upgrade data base schema. Current schema version is kept in BrokerSchema table and each upgrade step check if its object already
+     * exists, so tables created by a previous version without BrokerSchema are upgraded too. Version is only saved once the objects of its step
+     * exist : a failed step stop the upgrade and is tried again by the next start.
+     */
+    public void initDB() {
+        Connection conn = null;
+        int next = 0;
+
+        try {
+            conn = getConnection(ds);
+
+            if (!tableExists(conn, "BrokerSchema")) {
+                executeDDL(conn, "create table BrokerSchema (name VARCHAR(100) NOT NULL, version INTEGER, primary key(name))", true);
+                executeDDL(conn, "INSERT INTO BrokerSchema (name,version) VALUES('" + GENERATION_NAME + "',0)", true);
             }
-            try {
-                if (conn != null) {
-                    conn.close();
+
+            for (next = getSchemaVersion(conn) + 1; next <= SCHEMA_VERSION; next++) {
+                if (!isSchemaUpgraded(conn, next)) {
+                    LOG.info("Upgrade discovery schema to version {}", next);
+                    try {
+                        upgradeSchema(conn, next);
+                    } catch (SQLException e) {
+                        if (!isSchemaUpgraded(conn, next)) {
+                            throw e;
+                        }
+                        LOG.debug("Schema upgrade already done by another agent : " + e.getMessage());
+                    }
                 }
-            } catch (Exception e) {
-                LOG.error("Close Connection error", e);
+                executeDDL(conn, "UPDATE BrokerSchema SET version=" + next + " WHERE name='" + GENERATION_NAME + "' AND version<" + next, false);
             }
+
+        } catch (SQLException e) {
+            if (next > 0) {
+                LOG.error("Discovery schema upgrade to version " + next + " failed : " + e.getMessage());
+            } else {
+                LOG.warn("Init schema error : " + e.getMessage());
+            }
+        } finally {
+            close(null, conn);
         }
+    }
 
-        return result;
+    /**
+     * Check if the objects of a schema version exist.
+     * 
+     * @param conn
+     *            data base connection
+     * @param version
+     *            schema version
+     * @return true if the upgrade step of version is done
+     * @throws SQLException
+     *             on data base error
+     */
+    protected boolean isSchemaUpgraded(Connection conn, int version) throws SQLException {
+        switch (version) {
+        case 1:
+            return tableExists(conn, "Broker");
+        case 2:
+            return columnExists(conn, "Broker", "changeVersion");
+        case 3:
+            return tableExists(conn, "BrokerGeneration");
+        case 4:
+            return indexExists(conn, "Broker", "Broker_lastHeartBeat");
+        case 5:
+            return indexExists(conn, "Broker", "Broker_changeVersion");
+        case 6:
+            return tableExists(conn, "BrokerLease");
+        case 7:
+            return columnExists(conn, "Broker", "groupName");
+        case 8:
+            return indexExists(conn, "Broker", "Broker_group_lastHeartBeat");
+        case 9:
+            return indexExists(conn, "Broker", "Broker_group_changeVersion");
+        case 10:
+            return tableExists(conn, "BrokerInfo");
+        case 11:
+            return indexExists(conn, "BrokerInfo", "BrokerInfo_group_changeVersion");
+        case 12:
+            return tableExists(conn, "BrokerHeartBeat");
+        case 13:
+            return indexExists(conn, "BrokerHeartBeat", "BrokerHeartBeat_group_lastHeartBeat");
+        case 14:
+            return columnExists(conn, "Broker", "state");
+        case 15:
+            return columnExists(conn, "BrokerInfo", "state");
+        default:
+            throw new SQLException("Unknown discovery schema version " + version);
+        }
+    }
+
+    /**
+     * Upgrade schema to a version, only called if {@link #isSchemaUpgraded(Connection, int)} is false.
+     * 
+     * @param conn
+     *            data base connection
+     * @param version
+     *            version to reach
+     * @throws SQLException
+     *             on data base error
+     */
+    protected void upgradeSchema(Connection conn, int version) throws SQLException {
+        switch (version) {
+        case 1:
+            executeDDL(conn, "create table Broker (service VARCHAR(100) NOT NULL, name VARCHAR(100), lastHeartBeat BIGINT, primary key(service))", false);
+            break;
+        case 2:
+            executeDDL(conn, getAddColumnStatement("Broker", "changeVersion", "BIGINT"), false);
+            break;
+        case 3:
+            executeDDL(conn, "create table BrokerGeneration (name VARCHAR(100) NOT NULL, generation BIGINT, primary key(name))", false);
+            executeDDL(conn, "INSERT INTO BrokerGeneration (name,generation) VALUES('" + GENERATION_NAME + "',0)", true);
+            break;
+        case 4:
+            executeDDL(conn, getCreateIndexStatement("Broker_lastHeartBeat", "Broker", "lastHeartBeat"), false);
+            break;
+        case 5:
+            executeDDL(conn, getCreateIndexStatement("Broker_changeVersion", "Broker", "changeVersion"), false);
+            break;
+        case 6:
+            executeDDL(conn, "create table BrokerLease (name VARCHAR(100) NOT NULL, owner VARCHAR(100), expiry BIGINT, primary key(name))", false);
+            executeDDL(conn, "INSERT INTO BrokerLease (name,expiry) VALUES('" + REAPER_LEASE + "',0)", true);
+            break;
+        case 7:
+            // existing rows belong to default group
+            executeDDL(conn, getAddColumnStatement("Broker", "groupName", "VARCHAR(100) DEFAULT '" + DEFAULT_GROUP + "' NOT NULL"), false);
+            break;
+        case 8:
+            executeDDL(conn, getCreateIndexStatement("Broker_group_lastHeartBeat", "Broker", "groupName,lastHeartBeat"), false);
+            break;
+        case 9:
+            executeDDL(conn, getCreateIndexStatement("Broker_group_changeVersion", "Broker", "groupName,changeVersion"), false);
+            break;
+        case 10:
+            executeDDL(conn, "create table BrokerInfo (id BIGINT NOT NULL, service VARCHAR(100) NOT NULL, name VARCHAR(100), changeVersion BIGINT, "
+                    + "groupName VARCHAR(100) DEFAULT '" + DEFAULT_GROUP + "' NOT NULL, primary key(id))", false);
+            break;
+        case 11:
+            executeDDL(conn, getCreateIndexStatement("BrokerInfo_group_changeVersion", "BrokerInfo", "groupName,changeVersion"), false);
+            break;
+        case 12:
+            executeDDL(conn, "create table BrokerHeartBeat (id BIGINT NOT NULL, groupName VARCHAR(100) DEFAULT '" + DEFAULT_GROUP
+                    + "' NOT NULL, lastHeartBeat BIGINT, primary key(id))", false);
+            break;
+        case 13:
+            executeDDL(conn, getCreateIndexStatement("BrokerHeartBeat_group_lastHeartBeat", "BrokerHeartBeat", "groupName,lastHeartBeat"), false);
+            break;
+        case 14:
+            executeDDL(conn, getAddColumnStatement("Broker", "state", "INTEGER DEFAULT 0 NOT NULL"), false);
+            break;
+        case 15:
+            executeDDL(conn, getAddColumnStatement("BrokerInfo", "state", "INTEGER DEFAULT 0 NOT NULL"), false);
+            break;
+        default:
+            throw new SQLException("Unknown discovery schema version " + version);
+        }
+    }
+
+    /**
+     * Add column statement.
+     * 
+     * @param table
+     *            table name
+     * @param column
+     *            column name
+     * @param type
+     *            SQL type of column
+     * @return DDL statement
+     */
+    protected String getAddColumnStatement(String table, String column, String type) {
+        return "ALTER TABLE " + table + " ADD COLUMN " + column + " " + type;
+    }
+
+    /**
+     * Create index statement.
+     * 
+     * @param index
+     *            index name
+     * @param table
+     *            table name
+     * @param columns
+     *            comma separated columns
+     * @return DDL statement
+     */
+    protected String getCreateIndexStatement(String index, String table, String columns) {
+        return "CREATE INDEX " + index + " ON " + table + " (" + columns + ")";
+    }
+
+    private int getSchemaVersion(Connection conn) throws SQLException {
+        Statement stmt = null;
+        ResultSet results = null;
+
+        try {
+            stmt = conn.createStatement();
+            results = stmt.executeQuery("SELECT version FROM BrokerSchema WHERE name='" + GENERATION_NAME + "'");
+            return results.next() ? results.getInt(1) : 0;
+        } finally {
+            if (results != null) {
+                results.close();
+            }
+            close(stmt, null);
+        }
+    }
+
+    protected boolean tableExists(Connection conn, String table) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        return exists(meta.getTables(null, null, toMetaDataCase(meta, table), null));
+    }
+
+    protected boolean columnExists(Connection conn, String table, String column) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        return exists(meta.getColumns(null, null, toMetaDataCase(meta, table), toMetaDataCase(meta, column)));
+    }
+
+    protected boolean indexExists(Connection conn, String table, String index) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        ResultSet results = meta.getIndexInfo(null, null, toMetaDataCase(meta, table), false, true);
+
+        try {
+            while (results.next()) {
+                if (index.equalsIgnoreCase(results.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            results.close();
+        }
+    }
+
+    private boolean exists(ResultSet results) throws SQLException {
+        try {
+            return results.next();
+        } finally {
+            results.close();
+        }
+    }
+
+    private String toMetaDataCase(DatabaseMetaData meta, String name) throws SQLException {
+        if (meta.storesUpperCaseIdentifiers()) {
+            return name.toUpperCase();
+        } else if (meta.storesLowerCaseIdentifiers()) {
+            return name.toLowerCase();
+        }
+        return name;
+    }
+
+    /**
+     * Add a new broker.
+     * 
+     * @param data
+     *            Broker data
+     */
+    public void addBroker(RemoteBrokerData data) {
+        try {
+            if (split) {
+                execute("addBroker", INSERT_INFO, new BrokerInfoCallback(data, null));
+                execute("addBroker", INSERT_HEARTBEAT, new BrokerHeartBeatCallback(data));
+            } else {
+                execute("addBroker", INSERT_BROKER, new InsertBrokerCallback(data));
+            }
+        } catch (SQLException e) {
+            LOG.trace("Add broker error : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Update lastHeartBeat time for a broker.
+     * 
+     * @param data
+     *            Broker data
+     */
+    public void updateBroker(final RemoteBrokerData data) {
+        try {
+            execute("updateBroker", split ? UPDATE_HEARTBEAT : UPDATE_BROKER, new StatementCallback<Integer>() {
+                public Integer doInStatement(PreparedStatement stmt) throws SQLException {
+                    stmt.setLong(1, data.getLastHeartBeat());
+                    setBrokerKey(stmt, 2, data);
+                    stmt.setString(3, group);
+                    return stmt.executeUpdate();
+                }
+            });
+        } catch (SQLException e) {
+            LOG.trace("Update broker error : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Update lastHeartBeat time for several brokers in one batch. A broker without row (deleted by the reaper during a long pause) is registered
+     * again with a new change version.
+     * 
+     * @param datas
+     *            Brokers data
+     * @return false on data base error
+     */
+    public boolean updateBrokers(Collection<RemoteBrokerData> datas) {
+        final List<RemoteBrokerData> brokers = new ArrayList<RemoteBrokerData>(datas);
+        int[] counts;
+        try {
+            counts = execute("updateBrokers", split ? UPDATE_HEARTBEAT : UPDATE_BROKER, new StatementCallback<int[]>() {
+                public int[] doInStatement(PreparedStatement stmt) throws SQLException {
+                    for (RemoteBrokerData data : brokers) {
+                        stmt.setLong(1, data.getLastHeartBeat());
+                        setBrokerKey(stmt, 2, data);
+                        stmt.setString(3, group);
+                        stmt.addBatch();
+                    }
+                    return stmt.executeBatch();
+                }
+            });
+        } catch (SQLException e) {
+            LOG.warn("Update brokers error : " + e.getMessage());
+            return false;
+        }
+
+        boolean registered = true;
+        boolean missing = false;
+        for (int i = 0; i < counts.length && i < brokers.size(); i++) {
+            // driver may answer SUCCESS_NO_INFO, only 0 means no row
+            if (counts[i] == 0) {
+                LOG.info("Broker row not found, register again : {}", brokers.get(i));
+                registered &= registerBroker(brokers.get(i));
+                missing = true;
+            }
+        }
+        if (missing) {
+            bumpGeneration();
+        }
+        return registered;
+    }
+
+    /**
+     * Mark a stopped broker as draining with a new change version, in one statement. Scans see it as removed at once instead of waiting for its
+     * heartbeat expiry, until it register again.
+     * 
+     * @param data
+     *            Broker data
+     */
+    public void drainBroker(final RemoteBrokerData data) {
+        try {
+            execute("drainBroker", split ? DRAIN_INFO : DRAIN_BROKER, new StatementCallback<Integer>() {
+                public Integer doInStatement(PreparedStatement stmt) throws SQLException {
+                    stmt.setLong(1, System.currentTimeMillis());
+                    setBrokerKey(stmt, 2, data);
+                    stmt.setString(3, group);
+                    return stmt.executeUpdate();
+                }
+            });
+        } catch (SQLException e) {
+            LOG.warn("Drain broker error : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Insert or update a broker with a new change version, in one statement with the dialect upsert if any, else update then insert if broker is
+     * unknown. An upsert rejected with a SQL syntax or access error (class 42) is not used again, an upsert failing on a constraint (class 23)
+     * is done again with update then insert. Split layout always update then insert, in
+     * BrokerInfo first so a scan finding a new heartbeat row can read its metadata. Broker rows are keyed by service : statements never take over
+     * the row of a live broker of another group, so a service can only be in one group.
+     * 
+     * @param data
+     *            Broker data
+     * @return false on data base error or if the service is live in another group
+     */
+    public boolean registerBroker(final RemoteBrokerData data) {
+        final long dateMin = System.currentTimeMillis() - maxDelay;
+        try {
+            boolean registered;
+            String upsert = upsertRejected ? null : getUpsertStatement();
+            if (split) {
+                registered = execute("registerBroker", RENEW_INFO, new BrokerInfoCallback(data, dateMin)) > 0
+                        || insertBroker(INSERT_INFO, new BrokerInfoCallback(data, null));
+                if (registered && execute("registerBroker", RENEW_HEARTBEAT, new BrokerHeartBeatCallback(data)) == 0) {
+                    execute("registerBroker", INSERT_HEARTBEAT, new BrokerHeartBeatCallback(data));
+                }
+            } else if (upsert != null) {
+                try {
+                    // no row changed : service is live in another group
+                    registered = execute("registerBroker", upsert, new StatementCallback<Integer>() {
+                        public Integer doInStatement(PreparedStatement stmt) throws SQLException {
+                            setUpsertParameters(stmt, data, dateMin);
+                            return stmt.executeUpdate();
+                        }
+                    }) > 0;
+                } catch (SQLException e) {
+                    String state = e.getSQLState();
+                    if (state != null && state.startsWith("23")) {
+                        // concurrent insert, or Derby MERGE refusing an update which keep the index keys
+                        registered = renewOrInsertBroker(data, dateMin);
+                    } else if (state != null && state.startsWith("42")) {
+                        LOG.warn("Upsert rejected by data base, use update then insert : " + e.getMessage());
+                        upsertRejected = true;
+                        registered = renewOrInsertBroker(data, dateMin);
+                    } else {
+                        throw e;
+                    }
+                }
+            } else {
+                registered = renewOrInsertBroker(data, dateMin);
+            }
+
+            if (!registered) {
+                LOG.error("Broker " + data + " not registered, its service is live in another group : a service can only be in one group");
+            }
+            return registered;
+        } catch (SQLException e) {
+            LOG.warn("Register broker error : " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean renewOrInsertBroker(RemoteBrokerData data, long dateMin) throws SQLException {
+        return execute("registerBroker", RENEW_BROKER, new RenewBrokerCallback(data, dateMin)) > 0
+                || insertBroker(INSERT_BROKER, new InsertBrokerCallback(data));
+    }
+
+    /**
+     * Insert a broker not renewed.
+     * 
+     * @return false if the row exists (live in another group)
+     */
+    private boolean insertBroker(String sql, StatementCallback<Integer> callback) throws SQLException {
+        try {
+            execute("registerBroker", sql, callback);
+            return true;
+        } catch (SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Single statement insert or update of a broker. Update must be guarded like setUpsertParameters tell, and change no row when refused.
+     * 
+     * @return upsert SQL or null if data base doesn't support it
+     */
+    protected String getUpsertStatement() {
+        return null;
+    }
+
+    /**
+     * Set upsert parameters. Default order is service, name, lastHeartBeat, changeVersion, group, then the liveness bound : the update must
+     * only change a row of the adapter group, or a row with lastHeartBeat lower or equal to it, or a draining row.
+     * 
+     * @param stmt
+     *            upsert statement
+     * @param data
+     *            Broker data
+     * @param dateMin
+     *            liveness bound of rows of other groups
+     * @throws SQLException
+     *             on data base error
+     */
+    protected void setUpsertParameters(PreparedStatement stmt, RemoteBrokerData data, long dateMin) throws SQLException {
+        stmt.setString(1, data.getService());
+        stmt.setString(2, data.getBrokerName());
+        stmt.setLong(3, data.getLastHeartBeat());
+        stmt.setLong(4, data.getLastHeartBeat());
+        stmt.setString(5, group);
+        stmt.setLong(6, dateMin);
+    }
+
+    /**
+     * Increment cluster generation of the group. Must be call after each join or leave of a broker. Generation row of a new group is created by its
+     * first bump.
+     */
+    public void bumpGeneration() {
+        final String name = getGroupRowName(GENERATION_NAME);
+        try {
+            int updated = execute("bumpGeneration", BUMP_GENERATION, new StatementCallback<Integer>() {
+                public Integer doInStatement(PreparedStatement stmt) throws SQLException {
+                    stmt.setString(1, name);
+                    return stmt.executeUpdate();
+                }
+            });
+            if (updated == 0) {
+                execute("bumpGeneration", INSERT_GENERATION, new StatementCallback<Integer>() {
+                    public Integer doInStatement(PreparedStatement stmt) throws SQLException {
+                        stmt.setString(1, name);
+                        return stmt.executeUpdate();
+                    }
+                });
+            }
+        } catch (SQLException e) {
+            LOG.trace("Bump generation error : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get a digest of the group membership : cluster generation and number of live brokers. Generation change on join and leave, live count change
+     * on broker expiry.
+     * 
+     * @param dateMin
+     *            minimum time in ms of last broker heartBeat
+     * @return membership digest, null on error or if the group has no generation yet
+     */
+    public String getClusterDigest(final long dateMin) {
+        try {
+            return executeRead("getClusterDigest", split ? SELECT_DIGEST_SPLIT : SELECT_DIGEST, new StatementCallback<String>() {
+                public String doInStatement(PreparedStatement stmt) throws SQLException {
+                    stmt.setString(1, group);
+                    stmt.setLong(2, dateMin);
+                    stmt.setString(3, getGroupRowName(GENERATION_NAME));
+                    ResultSet results = stmt.executeQuery();
+                    try {
+                        // no generation row until first bump of a new group
+                        return results.next() ? results.getLong(1) + ":" + results.getLong(2) : null;
+                    } finally {
+                        results.close();
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            LOG.warn("SQL error to get cluster digest : " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Acquire or renew a lease of the group. Lease is acquired if owner already have it or if it is expired. Lease row of a new group is created by
+     * its first owner.
+     * 
+     * @param lease
+     *            lease name
+     * @param owner
+     *            lease owner
+     * @param duration
+     *            lease duration in ms
+     * @return true if owner have the lease
+     */
+    public boolean acquireLease(String lease, final String owner, final long duration) {
+        final String name = getGroupRowName(lease);
+        final long now = System.currentTimeMillis();
+        try {
+            if (execute("acquireLease", ACQUIRE_LEASE, new StatementCallback<Integer>() {
+                public Integer doInStatement(PreparedStatement stmt) throws SQLException {
+                    stmt.setString(1, owner);
+                    stmt.setLong(2, now + duration);
+                    stmt.setString(3, name);
+                    stmt.setString(4, owner);
+                    stmt.setLong(5, now);
+                    return stmt.executeUpdate();
+                }
+            }) > 0) {
+                return true;
+            }
+            if (name.equals(lease)) {
+                return false;
+            }
+            return insertLease(name, owner, now + duration);
+        } catch (SQLException e) {
+            LOG.warn("SQL error to acquire lease " + lease + " : " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Create the lease row of a group.
+     * 
+     * @return false if another agent created it first
+     */
+    private boolean insertLease(final String name, final String owner, final long expiry) throws SQLException {
+        try {
+            return execute("acquireLease", INSERT_LEASE, new StatementCallback<Integer>() {
+                public Integer doInStatement(PreparedStatement stmt) throws SQLException {
+                    stmt.setString(1, name);
+                    stmt.setString(2, owner);
+                    stmt.setLong(3, expiry);
+                    return stmt.executeUpdate();
+                }
+            }) > 0;
+        } catch (SQLException e) {
+            if (isAnswer(e)) {
+                LOG.trace("Lease " + name + " created by another agent : " + e.getMessage());
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Delete a batch of brokers of the group without heartbeat since a date.
+     * 
+     * @param dateMax
+     *            brokers with last heartBeat before this time in ms are deleted
+     * @param batchSize
+     *            max number of deleted brokers
+     * @return number of brokers found to delete
+     */
+    public int deleteOldBroker(final long dateMax, final int batchSize) {
+        if (split) {
+            return deleteOldBrokerSplit(dateMax, batchSize);
+        }
+        try {
+            final Collection<String> services = execute("deleteOldBroker", SELECT_OLD_BROKER, new StatementCallback<Collection<String>>() {
+                public Collection<String> doInStatement(PreparedStatement stmt) throws SQLException {
+                    stmt.setMaxRows(batchSize);
+                    stmt.setString(1, group);
+                    stmt.setLong(2, dateMax);
+
+                    Collection<String> result = new ArrayList<String>();
+                    ResultSet results = stmt.executeQuery();
+                    try {
+                        while (results.next()) {
+                            result.add(results.getString(1));
+                        }
+                    } finally {
+                        results.close();
+                    }
+                    return result;
+                }
+            });
+
+            if (!services.isEmpty()) {
+                execute("deleteOldBroker", DELETE_OLD_BROKER, new StatementCallback<int[]>() {
+                    public int[] doInStatement(PreparedStatement stmt) throws SQLException {
+                        // heartbeat is checked again in case broker came back since the select
+                        for (String service : services) {
+                            stmt.setString(1, service);
+                            stmt.setLong(2, dateMax);
+                            stmt.addBatch();
+                        }
+                        return stmt.executeBatch();
+                    }
+                });
+            }
+            return services.size();
+        } catch (SQLException e) {
+            LOG.warn("SQL error to delete old broker : " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private int deleteOldBrokerSplit(final long dateMax, final int batchSize) {
+        try {
+            final Collection<Long> ids = execute("deleteOldBroker", SELECT_OLD_ID, new StatementCallback<Collection<Long>>() {
+                public Collection<Long> doInStatement(PreparedStatement stmt) throws SQLException {
+                    stmt.setMaxRows(batchSize);
+                    stmt.setString(1, group);
+                    stmt.setLong(2, dateMax);
+                    return readIds(stmt.executeQuery());
+                }
+            });
+
+            if (!ids.isEmpty()) {
+                execute("deleteOldBroker", DELETE_OLD_HEARTBEAT, new StatementCallback<int[]>() {
+                    public int[] doInStatement(PreparedStatement stmt) throws SQLException {
+                        for (Long id : ids) {
+                            stmt.setLong(1, id);
+                            stmt.setLong(2, dateMax);
+                            stmt.addBatch();
+                        }
+                        return stmt.executeBatch();
+                    }
+                });
+                // metadata is kept if broker came back since the select
+                execute("deleteOldBroker", DELETE_OLD_INFO, new StatementCallback<int[]>() {
+                    public int[] doInStatement(PreparedStatement stmt) throws SQLException {
+                        for (Long id : ids) {
+                            stmt.setLong(1, id);
+                            stmt.addBatch();
+                        }
+                        return stmt.executeBatch();
+                    }
+                });
+            }
+            return ids.size();
+        } catch (SQLException e) {
+            LOG.warn("SQL error to delete old broker : " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Get all broker list.
+     * 
+     * @param maxDelay
+     *            minimum time in ms of last broker heartBeat
+     * @return list of broker data, null on data base error
+     */
+    public Collection<RemoteBrokerData> getAllBroker(long maxDelay) {
+        if (split) {
+            final Collection<RemoteBrokerData> result = new ArrayList<RemoteBrokerData>();
+            return scanSplit(System.currentTimeMillis() - maxDelay, new BrokerConsumer() {
+                public void accept(RemoteBrokerData data) {
+                    result.add(data);
+                }
+            }) ? result : null;
+        }
+        return getBroker("getAllBroker", SELECT_ALL_BROKER, System.currentTimeMillis() - maxDelay);
+    }
+
+    /**
+     * Read all live brokers row by row, so memory used by a scan don't depend on cluster size (see fetchSize). With hedged reads rows are read
+     * in a list first, only the first replica answer can be given to the consumer.
+     * 
+     * @param maxDelay
+     *            minimum time in ms of last broker heartBeat
+     * @param consumer
+     *            receive each broker
+     * @return false on data base error, consumer may have received a part of brokers
+     */
+    public boolean scanAllBroker(long maxDelay, final BrokerConsumer consumer) {
+        long dateMin = System.currentTimeMillis() - maxDelay;
+
+        if (split) {
+            return scanSplit(dateMin, consumer);
+        }
+
+        if (isHedged()) {
+            Collection<RemoteBrokerData> brokers = getBroker("getAllBroker", SELECT_ALL_BROKER, dateMin);
+            if (brokers == null) {
+                return false;
+            }
+            for (RemoteBrokerData broker : brokers) {
+                consumer.accept(broker);
+            }
+            return true;
+        }
+
+        try {
+            executeRead("scanAllBroker", SELECT_ALL_BROKER, new BrokerQueryCallback<Void>(dateMin) {
+                protected Void read(ResultSet results) throws SQLException {
+                    while (results.next()) {
+                        consumer.accept(new RemoteBrokerData(results.getString(2), results.getString(1), results.getLong(3), results.getLong(4), false));
+                    }
+                    return null;
+                }
+            });
+            return true;
+        } catch (SQLException e) {
+            LOG.warn("SQL error to scan broker : " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Split layout scan. Ids and heartbeats of live brokers are read in the narrow BrokerHeartBeat table and their metadata come from a cache of BrokerInfo
+     * rows : only rows changed since the last scan and unknown ids are read in BrokerInfo. Rows are read in lists, callbacks may run on
+     * hedged read threads.
+     */
+    private boolean scanSplit(long dateMin, BrokerConsumer consumer) {
+        synchronized (infos) {
+            try {
+                List<BrokerInfo> changed = executeRead("scanBrokerInfo", SELECT_CHANGED_INFO, new BrokerQueryCallback<List<BrokerInfo>>(infoDateMin) {
+                    protected List<BrokerInfo> read(ResultSet results) throws SQLException {
+                        return readInfos(results);
+                    }
+                });
+                putInfos(changed);
+
+                Map<Long, Long> heartBeats = executeRead("scanBrokerId", SELECT_LIVE_ID, new BrokerQueryCallback<Map<Long, Long>>(dateMin) {
+                    protected Map<Long, Long> read(ResultSet results) throws SQLException {
+                        Map<Long, Long> result = new HashMap<Long, Long>();
+                        while (results.next()) {
+                            result.put(results.getLong(1), results.getLong(2));
+                        }
+                        return result;
+                    }
+                });
+
+                final List<Long> unknown = new ArrayList<Long>();
+                for (Long id : heartBeats.keySet()) {
+                    if (!infos.containsKey(id)) {
+                        unknown.add(id);
+                    }
+                }
+                if (!unknown.isEmpty()) {
+                    // registered by a broker with a clock behind more than maxDelay or came back without registration
+                    putInfos(executeRead("getBrokerInfo", SELECT_INFO, new StatementCallback<List<BrokerInfo>>() {
+                        public List<BrokerInfo> doInStatement(PreparedStatement stmt) throws SQLException {
+                            List<BrokerInfo> result = new ArrayList<BrokerInfo>();
+                            for (Long id : unknown) {
+                                stmt.setLong(1, id);
+                                result.addAll(readInfos(stmt.executeQuery()));
+                            }
+                            return result;
+                        }
+                    }));
+                }
+
+                infos.keySet().retainAll(heartBeats.keySet());
+                for (Map.Entry<Long, RemoteBrokerData> info : infos.entrySet()) {
+                    if (!info.getValue().isDraining()) {
+                        consumer.accept(info.getValue().withHeartBeat(heartBeats.get(info.getKey())));
+                    }
+                }
+                infoDateMin = dateMin;
+                return true;
+            } catch (SQLException e) {
+                LOG.warn("SQL error to scan broker : " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    private void putInfos(List<BrokerInfo> rows) {
+        for (BrokerInfo info : rows) {
+            infos.put(info.id, info.data);
+        }
+    }
+
+    private List<BrokerInfo> readInfos(ResultSet results) throws SQLException {
+        try {
+            List<BrokerInfo> result = new ArrayList<BrokerInfo>();
+            while (results.next()) {
+                result.add(new BrokerInfo(results));
+            }
+            return result;
+        } finally {
+            results.close();
+        }
+    }
+
+    private Collection<Long> readIds(ResultSet results) throws SQLException {
+        try {
+            Collection<Long> result = new ArrayList<Long>();
+            while (results.next()) {
+                result.add(results.getLong(1));
+            }
+            return result;
+        } finally {
+            results.close();
+        }
+    }
+
+    /**
+     * Get live brokers registered or renewed since a change version.
+     * 
+     * @param sinceVersion
+     *            exclusive lower bound of broker change version
+     * @param dateMin
+     *            minimum time in ms of last broker heartBeat
+     * @return list of broker data, null on data base error
+     */
+    public Collection<RemoteBrokerData> getChangedBroker(long sinceVersion, long dateMin) {
+        return getBroker("getChangedBroker", split ? SELECT_CHANGED_BROKER_SPLIT : SELECT_CHANGED_BROKER, sinceVersion, dateMin);
+    }
+
+    /**
+     * Get brokers whose last heartBeat fell out of the liveness window between two scans.
+     * 
+     * @param previousDateMin
+     *            liveness lower bound used by the previous scan
+     * @param dateMin
+     *            liveness lower bound of the current scan
+     * @return list of broker data, null on data base error
+     */
+    public Collection<RemoteBrokerData> getExpiredBroker(long previousDateMin, long dateMin) {
+        return getBroker("getExpiredBroker", split ? SELECT_EXPIRED_BROKER_SPLIT : SELECT_EXPIRED_BROKER, previousDateMin, dateMin);
+    }
+
+    /**
+     * Release the pinned connections if any.
+     */
+    public synchronized void close() {
+        if (writeLink != null) {
+            writeLink.close();
+        }
+        for (Link link : readLinks) {
+            link.close();
+        }
+    }
+
+    /**
+     * Run a broker query.
+     * 
+     * @param operation
+     *            operation name for metrics
+     * @param query
+     *            SQL query returning service, name, lastHeartBeat, changeVersion and state columns
+     * @param params
+     *            long query parameters
+     * @return list of broker data, null on data base error
+     */
+    private Collection<RemoteBrokerData> getBroker(String operation, String query, long... params) {
+        try {
+            return executeRead(operation, query, new BrokerQueryCallback<Collection<RemoteBrokerData>>(params) {
+                protected Collection<RemoteBrokerData> read(ResultSet results) throws SQLException {
+                    Collection<RemoteBrokerData> result = new ArrayList<RemoteBrokerData>();
+                    while (results.next()) {
+                        String service = results.getString(1);
+                        String name = results.getString(2);
+
+                        RemoteBrokerData data = new RemoteBrokerData(name, service, results.getLong(3), results.getLong(4), results.getInt(5) == DRAINING);
+                        result.add(data);
+                    }
+                    return result;
+                }
+            });
+        } catch (SQLException e) {
+            LOG.warn("SQL error to get broker : " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Run a statement on the write DataSource.
+     * 
+     * @param operation
+     *            operation name for metrics
+     * @param sql
+     *            SQL with ? parameters
+     * @param callback
+     *            work to do with the statement
+     * @return callback result
+     * @throws SQLException
+     *             on data base error
+     */
+    private <T> T execute(String operation, String sql, StatementCallback<T> callback) throws SQLException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = writeLink.execute(sql, callback);
+            success = true;
+            return result;
+        } finally {
+            record(operation, start, success);
+        }
+    }
+
+    /**
+     * Run a query on a read replica, replicas are used in turn. A failed read is done again on the next replica. With hedged reads, a read
+     * slower than the hedge percentile is sent to the next replica too and the first answer is used.
+     * 
+     * @param operation
+     *            operation name for metrics
+     * @param sql
+     *            SQL query with ? parameters
+     * @param callback
+     *            work to do with the statement
+     * @return callback result
+     * @throws SQLException
+     *             if all replicas fail
+     */
+    private <T> T executeRead(String operation, String sql, StatementCallback<T> callback) throws SQLException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = doExecuteRead(sql, callback);
+            success = true;
+            return result;
+        } finally {
+            record(operation, start, success);
+        }
+    }
+
+    private void record(String operation, long start, boolean success) {
+        DiscoveryMetrics current = metrics;
+        if (current != null) {
+            current.recordOperation(operation, start, success);
+        }
+    }
+
+    private <T> T doExecuteRead(String sql, StatementCallback<T> callback) throws SQLException {
+        List<Link> readers = readLinks;
+        if (readers.isEmpty()) {
+            return writeLink.read(sql, callback);
+        }
+
+        int first = (nextReader.getAndIncrement() & Integer.MAX_VALUE) % readers.size();
+        Executor executor = isHedged() ? DiscoveryExecutors.getIo() : null;
+        if (executor != null) {
+            return executeHedged(executor, readers, first, sql, callback);
+        }
+
+        SQLException error = null;
+        for (int i = 0; i < readers.size(); i++) {
+            try {
+                return executeTimed(readers.get((first + i) % readers.size()), sql, callback);
+            } catch (SQLException e) {
+                LOG.debug("Read replica error : " + e.getMessage());
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    private <T> T executeHedged(Executor executor, List<Link> readers, int first, String sql, StatementCallback<T> callback) throws SQLException {
+        CompletionService<T> reads = new ExecutorCompletionService<T>(executor);
+        List<Future<T>> attempts = new ArrayList<Future<T>>(readers.size());
+        SQLException error = null;
+
+        try {
+            attempts.add(reads.submit(new ReadTask<T>(readers.get(first), sql, callback)));
+            int running = 1;
+
+            while (running > 0) {
+                Future<T> done;
+                if (attempts.size() < readers.size()) {
+                    done = reads.poll(getHedgeDelay(), TimeUnit.MILLISECONDS);
+                } else {
+                    done = reads.take();
+                }
+
+                if (done == null) {
+                    LOG.trace("Slow read replica, hedge read : {}", sql);
+                    attempts.add(reads.submit(new ReadTask<T>(readers.get((first + attempts.size()) % readers.size()), sql, callback)));
+                    running++;
+                    continue;
+                }
+
+                running--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    LOG.debug("Read replica error : " + e.getCause().getMessage());
+                    error = (e.getCause() instanceof SQLException) ? (SQLException) e.getCause() : new SQLException("Read error", e.getCause());
+                    if (attempts.size() < readers.size()) {
+                        attempts.add(reads.submit(new ReadTask<T>(readers.get((first + attempts.size()) % readers.size()), sql, callback)));
+                        running++;
+                    }
+                }
+            }
+            throw error;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Read interrupted", e);
+        } catch (RejectedExecutionException e) {
+            throw new SQLException("Read executor stopped", e);
+        } finally {
+            // slower reads still running are left to finish, their result is lost
+            for (Future<T> attempt : attempts) {
+                attempt.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Read on a replica and keep its latency.
+     */
+    private <T> T executeTimed(Link link, String sql, StatementCallback<T> callback) throws SQLException {
+        long start = System.nanoTime();
+        T result = link.read(sql, callback);
+        readLatencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
+
+    /**
+     * Replica read run on I/O executor.
+     */
+    private class ReadTask<T> implements Callable<T> {
+        private final Link link;
+        private final String sql;
+        private final StatementCallback<T> callback;
+
+        ReadTask(Link link, String sql, StatementCallback<T> callback) {
+            this.link = link;
+            this.sql = sql;
+            this.callback = callback;
+        }
+
+        public T call() throws SQLException {
+            return executeTimed(link, sql, callback);
+        }
+    }
+
+    /**
+     * Time in ms to wait a replica before a hedged read.
+     */
+    private long getHedgeDelay() {
+        long delay = readLatencies.percentile(hedgePercentile);
+        return (delay < 0) ? HEDGE_DEFAULT_DELAY : Math.max(1, delay);
+    }
+
+    /**
+     * Run a DDL statement.
+     * 
+     * @param conn
+     *            data base connection
+     * @param sql
+     *            DDL statement
+     * @param concurrent
+     *            error may come from another agent doing the same upgrade at the same time
+     * @throws SQLException
+     *             on data base error
+     */
+    protected void executeDDL(Connection conn, String sql, boolean concurrent) throws SQLException {
+        Statement stmt = null;
+
+        try {
+            stmt = conn.createStatement();
+            applyTimeout(stmt, sql);
+            stmt.executeUpdate(sql);
+        } catch (SQLException e) {
+            if (!concurrent) {
+                throw e;
+            }
+            LOG.debug("Schema statement error, already done by another agent ? " + e.getMessage());
+        } finally {
+            close(stmt, null);
+        }
+    }
+
+    /**
+     * Set number of rows fetched by round trip of a broker query. Dialects may override it when the driver need a special value to stream rows.
+     * 
+     * @param stmt
+     *            broker query
+     * @throws SQLException
+     *             on data base error
+     */
+    protected void applyFetchSize(PreparedStatement stmt) throws SQLException {
+        if (fetchSize > 0) {
+            stmt.setFetchSize(fetchSize);
+        }
+    }
+
+    /**
+     * Check if reads may be sent to several replicas at the same time.
+     */
+    private boolean isHedged() {
+        return hedgedReads && readLinks.size() > 1;
+    }
+
+    /**
+     * Set query or update timeout of a statement.
+     */
+    private void applyTimeout(Statement stmt, String sql) throws SQLException {
+        int timeout = sql.regionMatches(true, 0, "SELECT", 0, 6) ? queryTimeout : updateTimeout;
+        if (timeout > 0) {
+            // JDBC timeout is in seconds
+            stmt.setQueryTimeout((timeout + 999) / 1000);
+        }
+    }
+
+    private Connection getConnection(DataSource dataSource) throws SQLException {
+        return getConnection(dataSource, connectTimeout);
+    }
+
+    /**
+     * Get a connection in at most connectTimeout. A connection got by the I/O executor after the caller stopped waiting is closed, so a slow
+     * pool don't leak it.
+     * 
+     * @param dataSource
+     *            data base access, never changed
+     * @param connectTimeout
+     *            max time in ms, 0 for no limit
+     * @return the connection
+     * @throws SQLException
+     *             on data base error or timeout
+     */
+    static Connection getConnection(DataSource dataSource, int connectTimeout) throws SQLException {
+        ExecutorService executor = (connectTimeout > 0) ? DiscoveryExecutors.getIo() : null;
+        if (executor == null) {
+            // no limit, or adapter used without agent
+            return dataSource.getConnection();
+        }
+
+        ConnectTask task = new ConnectTask(dataSource);
+        Future<Connection> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new SQLException("Connection executor stopped", e);
+        }
+
+        try {
+            return future.get(connectTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Connection late = task.abandon();
+            if (late != null) {
+                return late;
+            }
+            throw new SQLException("No connection after " + connectTimeout + " ms : " + dataSource);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Connection error", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close(null, task.abandon());
+            throw new SQLException("Connection interrupted", e);
+        }
+    }
+
+    /**
+     * Connection checkout run on I/O executor.
+     */
+    private static class ConnectTask implements Callable<Connection> {
+        private final DataSource dataSource;
+        private Connection connection;
+        private boolean abandoned;
+
+        ConnectTask(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        public Connection call() throws SQLException {
+            Connection conn = dataSource.getConnection();
+            synchronized (this) {
+                if (!abandoned) {
+                    connection = conn;
+                    return conn;
+                }
+            }
+            LOG.debug("Connection got after timeout, closed : {}", dataSource);
+            close(null, conn);
+            return null;
+        }
+
+        /**
+         * Caller stop waiting.
+         * 
+         * @return connection if it was got just before, null if it will be closed
+         */
+        synchronized Connection abandon() {
+            abandoned = true;
+            return connection;
+        }
+    }
+
+    /**
+     * Check if an error is an answer of an healthy data base (bad data, constraint or SQL error) rather than a connection, timeout or server
+     * error.
+     */
+    private static boolean isAnswer(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23") || state.startsWith("42"));
+    }
+
+    /**
+     * Numeric id of a broker in split layout, 64 bits FNV-1a hash of its service so each agent knows it without reading the data base.
+     * 
+     * @param service
+     *            broker service URI
+     * @return broker id
+     */
+    static long getBrokerId(String service) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < service.length(); i++) {
+            hash ^= service.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Set service or id of a broker as statement parameter, depending on schema layout.
+     */
+    private void setBrokerKey(PreparedStatement stmt, int index, RemoteBrokerData data) throws SQLException {
+        if (split) {
+            stmt.setLong(index, getBrokerId(data.getService()));
+        } else {
+            stmt.setString(index, data.getService());
+        }
+    }
+
+    /**
+     * Name of a BrokerGeneration or BrokerLease row for the adapter group. Default group keep the names used before groups.
+     */
+    private String getGroupRowName(String name) {
+        return DEFAULT_GROUP.equals(group) ? name : name + ":" + group;
+    }
+
+    private List<Link> getLinks() {
+        List<Link> links = new ArrayList<Link>(readLinks);
+        if (writeLink != null) {
+            links.add(writeLink);
+        }
+        return links;
+    }
+
+    private static void close(Statement stmt, Connection conn) {
+        try {
+            if (stmt != null) {
+                stmt.close();
+            }
+        } catch (Exception e) {
+            LOG.error("Close Statement error", e);
+        }
+        try {
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (Exception e) {
+            LOG.error("Close Connection error", e);
+        }
+    }
+
+    public DataSource getDataSource() {
+        return ds;
+    }
+
+    public synchronized void setDataSource(DataSource ds) {
+        if (writeLink != null) {
+            writeLink.close();
+        }
+        this.ds = ds;
+        this.writeLink = new Link(ds);
+    }
+
+    /**
+     * Get number of DataSources not called because their circuit is open.
+     * 
+     * @return open circuit count
+     */
+    public int getOpenCircuitCount() {
+        int open = 0;
+        for (Link link : getLinks()) {
+            if (link.breaker.getState() == CircuitBreaker.State.OPEN) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    void setMetrics(DiscoveryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    public void setQueryTimeout(int queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    public int getUpdateTimeout() {
+        return updateTimeout;
+    }
+
+    public void setUpdateTimeout(int updateTimeout) {
+        this.updateTimeout = updateTimeout;
+    }
+
+    public int getBreakerFailureThreshold() {
+        return breakerFailureThreshold;
+    }
+
+    public synchronized void setBreakerFailureThreshold(int breakerFailureThreshold) {
+        this.breakerFailureThreshold = breakerFailureThreshold;
+        for (Link link : getLinks()) {
+            link.breaker.setFailureThreshold(breakerFailureThreshold);
+        }
+    }
+
+    public int getBreakerOpenTime() {
+        return breakerOpenTime;
+    }
+
+    public synchronized void setBreakerOpenTime(int breakerOpenTime) {
+        this.breakerOpenTime = breakerOpenTime;
+        for (Link link : getLinks()) {
+            link.breaker.setOpenTime(breakerOpenTime);
+        }
+    }
+
+    /**
+     * Set read replicas used by broker scans.
+     * 
+     * @param dataSources
+     *            replica DataSources, empty to read on the write DataSource
+     */
+    public synchronized void setReadDataSources(List<DataSource> dataSources) {
+        for (Link link : readLinks) {
+            link.close();
+        }
+        List<Link> links = new ArrayList<Link>(dataSources.size());
+        for (DataSource dataSource : dataSources) {
+            links.add(new Link(dataSource));
+        }
+        readLinks = Collections.unmodifiableList(links);
+    }
+
+    public boolean isHedgedReads() {
+        return hedgedReads;
+    }
+
+    public void setHedgedReads(boolean hedgedReads) {
+        this.hedgedReads = hedgedReads;
+    }
+
+    public int getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public void setHedgePercentile(int hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public void setGroup(String group) {
+        this.group = group;
+    }
+
+    public int getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(int maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public String getSchemaLayout() {
+        return split ? SPLIT_LAYOUT : SINGLE_LAYOUT;
+    }
+
+    public void setSchemaLayout(String schemaLayout) {
+        if (!SINGLE_LAYOUT.equals(schemaLayout) && !SPLIT_LAYOUT.equals(schemaLayout)) {
+            throw new IllegalArgumentException("Unknown schema layout " + schemaLayout);
+        }
+        this.split = SPLIT_LAYOUT.equals(schemaLayout);
+    }
+
+    public boolean isPinnedConnection() {
+        return pinnedConnection;
+    }
+
+    public void setPinnedConnection(boolean pinnedConnection) {
+        this.pinnedConnection = pinnedConnection;
     }
 }
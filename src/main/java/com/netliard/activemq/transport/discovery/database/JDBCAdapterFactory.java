@@ -0,0 +1,119 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.apache.activemq.util.FactoryFinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Create the JDBCAdapter dialect of a data base. Dialects are found in META-INF/services/com/netliard/activemq/transport/discovery/database/adapter/
+ * with data base product name as key (like store).
+ * 
+ * @author Samuel Liard
+ * 
+ */
+public final class JDBCAdapterFactory {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(JDBCAdapterFactory.class);
+
+    private static final FactoryFinder ADAPTER_FINDER = new FactoryFinder("META-INF/services/com/netliard/activemq/transport/discovery/database/adapter/");
+
+    private JDBCAdapterFactory() {
+    }
+
+    /**
+     * Create adapter.
+     * 
+     * @param ds
+     *            data base access
+     * @param dialect
+     *            dialect name (e.g. mysql), null to detect it from data base product name
+     * @return the adapter, generic one if no dialect found
+     */
+    public static JDBCAdapter createAdapter(DataSource ds, String dialect) {
+        return createDialectAdapter(ds, (dialect == null) ? getDialect(ds, 0) : dialect);
+    }
+
+    /**
+     * Create adapter without data base access.
+     * 
+     * @param ds
+     *            data base access
+     * @param dialect
+     *            dialect name (e.g. mysql), null for generic adapter
+     * @return the adapter, generic one if no dialect found
+     */
+    static JDBCAdapter createDialectAdapter(DataSource ds, String dialect) {
+        JDBCAdapter adapter = null;
+
+        if (dialect != null) {
+            try {
+                adapter = (JDBCAdapter) ADAPTER_FINDER.newInstance(dialect);
+                LOG.info("Use JDBCAdapter dialect {} : {}", dialect, adapter.getClass().getName());
+            } catch (Throwable e) {
+                LOG.info("No JDBCAdapter dialect for {}, use generic adapter", dialect);
+            }
+        }
+
+        if (adapter == null) {
+            adapter = new JDBCAdapter();
+        }
+        adapter.setDataSource(ds);
+
+        return adapter;
+    }
+
+    /**
+     * Get dialect name from data base product name.
+     * 
+     * @param ds
+     *            data base access
+     * @param connectTimeout
+     *            max time in ms to get a connection, 0 for no limit
+     * @return dialect name or null if data base is unreachable
+     */
+    static String getDialect(DataSource ds, int connectTimeout) {
+        Connection conn = null;
+
+        try {
+            conn = JDBCAdapter.getConnection(ds, connectTimeout);
+            String productName = conn.getMetaData().getDatabaseProductName();
+            return productName.replaceAll("[^a-zA-Z0-9\\-]", "_").toLowerCase();
+        } catch (SQLException e) {
+            LOG.warn("Unable to get data base product name : " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                if (conn != null) {
+                    conn.close();
+                }
+            } catch (Exception e) {
+                LOG.error("Close Connection error", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency distribution in fixed buckets (1, 2, 5 steps from 1 ms to 30 s), lock free. Percentiles are the upper bound of their bucket.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+class LatencyHistogram {
+
+    /**
+     * Upper bound in ms of each bucket, the last one has no bound.
+     */
+    private static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, Long.MAX_VALUE };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length);
+
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Sum of latencies in ms.
+     */
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Max latency in ms.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Add a latency.
+     * 
+     * @param latency
+     *            latency in ms
+     */
+    public void record(long latency) {
+        int bucket = 0;
+        while (latency > BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(latency);
+
+        long current = max.get();
+        while (latency > current && !max.compareAndSet(current, latency)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long n = count.get();
+        return (n == 0) ? 0 : sum.get() / n;
+    }
+
+    /**
+     * Get a percentile.
+     * 
+     * @param percent
+     *            percentile between 0 and 100
+     * @return upper bound in ms of the percentile bucket, max latency for the last bucket, 0 if empty
+     */
+    public long getPercentile(double percent) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percent / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length - 1; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(BOUNDS[i], getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " mean=" + getMean() + "ms p50=" + getPercentile(50) + "ms p99=" + getPercentile(99) + "ms max=" + getMax()
+                + "ms";
+    }
+
+}
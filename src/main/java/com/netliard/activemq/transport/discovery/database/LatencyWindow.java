@@ -0,0 +1,87 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.util.Arrays;
+
+/**
+ * Last latencies of an operation, used to get a recent percentile.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+class LatencyWindow {
+
+    /**
+     * Min number of samples before a percentile is given.
+     */
+    private static final int MIN_SAMPLES = 10;
+
+    /**
+     * Ring of latencies in ms.
+     */
+    private final long[] samples;
+
+    /**
+     * Number of samples in ring.
+     */
+    private int count;
+
+    /**
+     * Next index to write.
+     */
+    private int next;
+
+    LatencyWindow(int size) {
+        samples = new long[size];
+    }
+
+    /**
+     * Add a latency, the oldest one is lost when window is full.
+     * 
+     * @param latency
+     *            latency in ms
+     */
+    public synchronized void record(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    /**
+     * Get a percentile of recent latencies.
+     * 
+     * @param percent
+     *            percentile between 1 and 100
+     * @return latency in ms, -1 if there is not enough samples
+     */
+    public long percentile(int percent) {
+        long[] sorted;
+        synchronized (this) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(sorted.length * Math.min(100, Math.max(1, percent)) / 100.0) - 1;
+        return sorted[index];
+    }
+
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Last known remote brokers saved on local disk, so an agent can send them to its listener before the data base answer. File is a properties file
+ * (broker name = service URI) replaced atomically : written in a temporary file of the same directory then renamed.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+class MembershipSnapshot {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(MembershipSnapshot.class);
+
+    /**
+     * Snapshot file.
+     */
+    private final File file;
+
+    /**
+     * Temporary file renamed to snapshot file.
+     */
+    private final File tmpFile;
+
+    MembershipSnapshot(String path) {
+        file = new File(path).getAbsoluteFile();
+        tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+    }
+
+    /**
+     * Read brokers of the snapshot.
+     * 
+     * @return saved brokers, empty if file is missing or unreadable
+     */
+    public List<RemoteBrokerData> load() {
+        List<RemoteBrokerData> result = new ArrayList<RemoteBrokerData>();
+        if (!file.isFile()) {
+            return result;
+        }
+
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+        } catch (IOException e) {
+            LOG.warn("Unable to read broker snapshot " + file + " : " + e.getMessage());
+            return result;
+        } finally {
+            closeQuietly(in);
+        }
+
+        for (String name : properties.stringPropertyNames()) {
+            result.add(new RemoteBrokerData(name, properties.getProperty(name)));
+        }
+        return result;
+    }
+
+    /**
+     * Replace snapshot with brokers. Errors are logged, the previous snapshot is kept.
+     * 
+     * @param brokers
+     *            brokers to save, local ones are skipped
+     */
+    public void save(Collection<RemoteBrokerData> brokers) {
+        Properties properties = new Properties();
+        for (RemoteBrokerData broker : brokers) {
+            if (!broker.isLocal()) {
+                properties.setProperty(broker.getBrokerName(), broker.getService());
+            }
+        }
+
+        FileOutputStream out = null;
+        try {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("unable to create directory " + dir);
+            }
+            out = new FileOutputStream(tmpFile);
+            properties.store(out, "DataBaseDiscoveryAgent brokers");
+            out.flush();
+            out.getFD().sync();
+            out.close();
+            out = null;
+
+            // rename don't replace an existing file on every platform
+            if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+                throw new IOException("unable to rename " + tmpFile);
+            }
+            LOG.trace("Broker snapshot saved : {}", properties);
+        } catch (IOException e) {
+            LOG.warn("Unable to write broker snapshot " + file + " : " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LOG.trace("Close error : {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MembershipSnapshot[" + file + "]";
+    }
+
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Phi accrual failure detector fed by heartbeats read in data base. Heartbeat values are written with the clock of each broker, so they
+ * are only used to see a change : intervals and elapsed time are measured with the local clock at which scans saw a new heartbeat, and
+ * clock skew between brokers don't feed phi. Intervals give a normal distribution by broker, and phi is the suspicion level of the time
+ * elapsed since the last new heartbeat. A round where no heartbeat advanced (data base stall) suspect nobody. Not thread safe, used by the
+ * scan of a hub.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+class PhiAccrualDetector {
+
+    /**
+     * Number of intervals kept by broker.
+     */
+    private static final int WINDOW_SIZE = 100;
+
+    /**
+     * Min number of intervals before a broker may be suspected.
+     */
+    private static final int MIN_SAMPLES = 3;
+
+    /**
+     * Suspicion level above which a broker is removed.
+     */
+    private final double threshold;
+
+    /**
+     * Lower bound of standard deviation in ms, so a very regular broker is not removed on a small delay.
+     */
+    private final double minStdDeviation;
+
+    /**
+     * Heartbeat history by broker.
+     */
+    private final Map<RemoteBrokerData, History> histories = new HashMap<RemoteBrokerData, History>();
+
+    /**
+     * Current round, a round is one full scan.
+     */
+    private long round;
+
+    /**
+     * Has a heartbeat advanced in current round.
+     */
+    private boolean advanced;
+
+    PhiAccrualDetector(double threshold, double minStdDeviation) {
+        this.threshold = threshold;
+        this.minStdDeviation = minStdDeviation;
+    }
+
+    /**
+     * Heartbeats of a broker.
+     */
+    private static class History {
+        private final long[] intervals = new long[WINDOW_SIZE];
+        private int count;
+        private int next;
+        private double sum;
+        private double squareSum;
+        private long lastHeartBeat;
+        private long lastSeen;
+        private long round;
+        private boolean suspected;
+
+        void add(long interval) {
+            if (count == intervals.length) {
+                sum -= intervals[next];
+                squareSum -= (double) intervals[next] * intervals[next];
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % intervals.length;
+            sum += interval;
+            squareSum += (double) interval * interval;
+        }
+    }
+
+    /**
+     * Record the heartbeat of a broker read by the current scan.
+     * 
+     * @param broker
+     *            broker with its data base heartbeat
+     * @return false if the broker is still suspected (no new heartbeat since its removal)
+     */
+    public boolean heartBeat(RemoteBrokerData broker) {
+        long heartBeat = broker.getLastHeartBeat();
+        long now = currentTime();
+        History history = histories.get(broker);
+        if (history == null) {
+            history = new History();
+            history.lastHeartBeat = heartBeat;
+            history.lastSeen = now;
+            histories.put(broker, history);
+        } else if (heartBeat > history.lastHeartBeat) {
+            // gap of a suspected broker is not a normal interval
+            if (!history.suspected) {
+                history.add(now - history.lastSeen);
+            }
+            history.lastHeartBeat = heartBeat;
+            history.lastSeen = now;
+            history.suspected = false;
+            advanced = true;
+        }
+        history.round = round;
+        return !history.suspected;
+    }
+
+    /**
+     * End a scan : brokers not read are forgotten and brokers with a phi above threshold become suspected. Nobody is suspected if no
+     * heartbeat advanced since the previous round, as a data base stall stop all heartbeats at once.
+     * 
+     * @return brokers suspected by this round
+     */
+    public Collection<RemoteBrokerData> endRound() {
+        Collection<RemoteBrokerData> suspects = new ArrayList<RemoteBrokerData>();
+        long now = currentTime();
+        for (Iterator<Map.Entry<RemoteBrokerData, History>> it = histories.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<RemoteBrokerData, History> entry = it.next();
+            History history = entry.getValue();
+            if (history.round != round) {
+                it.remove();
+            } else if (advanced && !history.suspected && phi(history, now - history.lastSeen) > threshold) {
+                history.suspected = true;
+                suspects.add(entry.getKey());
+            }
+        }
+        round++;
+        advanced = false;
+        return suspects;
+    }
+
+    /**
+     * Local clock in ms.
+     */
+    long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Phi of an elapsed time, with the logistic approximation of normal cumulative distribution.
+     */
+    private double phi(History history, long elapsed) {
+        if (history.count < MIN_SAMPLES) {
+            return 0;
+        }
+        double mean = history.sum / history.count;
+        double variance = history.squareSum / history.count - mean * mean;
+        double stdDeviation = Math.max(Math.sqrt(Math.max(0, variance)), minStdDeviation);
+
+        double y = (elapsed - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+}
@@ -17,69 +17,144 @@
 package com.netliard.activemq.transport.discovery.database;
 
 /**
- * POJO to describe Broker.
+ * Immutable description of a Broker, only the heartbeat change. Strings are interned so all agents share the same instances and snapshot read
+ * need no lock.
  * 
  * @author Samuel Liard
  * 
  */
-public class RemoteBrokerData {
+public final class RemoteBrokerData {
 
     /**
      * Broker descriptor.
      */
-    private String brokerName;
+    private final String brokerName;
 
     /**
      * Broker service URI.
      */
-    private String service;
+    private final String service;
 
     /**
      * Last communitaion date of broker in ms.
      */
-    private long lastHeartBeat;
+    private volatile long lastHeartBeat;
+
+    /**
+     * Change version of broker row, it change when broker register again (restart). 0 if unknown.
+     */
+    private final long changeVersion;
+
+    /**
+     * Broker is stopping, agents see it as removed.
+     */
+    private final boolean draining;
 
     /**
      * Is my local broker.
      */
-    private boolean local;
+    private final boolean local;
+
+    /**
+     * Hash of name and service.
+     */
+    private final int hash;
 
     public RemoteBrokerData(String brokerName, String service) {
-        this.brokerName = brokerName;
-        this.service = service;
+        this(brokerName, service, false);
+    }
+
+    public RemoteBrokerData(String brokerName, String service, boolean local) {
+        this.brokerName = (brokerName == null) ? null : brokerName.intern();
+        this.service = (service == null) ? null : service.intern();
         this.lastHeartBeat = System.currentTimeMillis();
-        local = false;
+        this.changeVersion = 0;
+        this.draining = false;
+        this.local = local;
+
+        int result = (this.brokerName == null) ? 0 : this.brokerName.hashCode();
+        this.hash = 31 * result + ((this.service == null) ? 0 : this.service.hashCode());
+    }
+
+    /**
+     * Broker read in data base.
+     * 
+     * @param brokerName
+     *            broker descriptor
+     * @param service
+     *            broker service URI
+     * @param lastHeartBeat
+     *            last heartbeat written by the broker in ms
+     * @param changeVersion
+     *            change version of broker row
+     * @param draining
+     *            broker is stopping
+     */
+    public RemoteBrokerData(String brokerName, String service, long lastHeartBeat, long changeVersion, boolean draining) {
+        this.brokerName = (brokerName == null) ? null : brokerName.intern();
+        this.service = (service == null) ? null : service.intern();
+        this.lastHeartBeat = lastHeartBeat;
+        this.changeVersion = changeVersion;
+        this.draining = draining;
+        this.local = false;
+
+        int result = (this.brokerName == null) ? 0 : this.brokerName.hashCode();
+        this.hash = 31 * result + ((this.service == null) ? 0 : this.service.hashCode());
+    }
+
+    private RemoteBrokerData(RemoteBrokerData data, long lastHeartBeat) {
+        this.brokerName = data.brokerName;
+        this.service = data.service;
+        this.lastHeartBeat = lastHeartBeat;
+        this.changeVersion = data.changeVersion;
+        this.draining = data.draining;
+        this.local = data.local;
+        this.hash = data.hash;
+    }
+
+    /**
+     * Copy of this broker with another heartbeat, strings are not interned again.
+     * 
+     * @param lastHeartBeat
+     *            heartbeat of the copy in ms
+     * @return broker copy
+     */
+    RemoteBrokerData withHeartBeat(long lastHeartBeat) {
+        return new RemoteBrokerData(this, lastHeartBeat);
     }
 
     /**
      * Set lastHeartBeat to now.
      */
-    public synchronized void updateHeartBeat() {
+    public void updateHeartBeat() {
         lastHeartBeat = System.currentTimeMillis();
     }
 
-    public synchronized long getLastHeartBeat() {
+    public long getLastHeartBeat() {
         return lastHeartBeat;
     }
 
-    public String getBrokerName() {
-        return brokerName;
+    public long getChangeVersion() {
+        return changeVersion;
     }
 
-    public void setBrokerName(String brokerName) {
-        this.brokerName = brokerName;
+    public boolean isDraining() {
+        return draining;
     }
 
-    public String getService() {
-        return service;
+    public String getBrokerName() {
+        return brokerName;
     }
 
-    public void setService(String service) {
-        this.service = service;
+    public String getService() {
+        return service;
     }
 
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
         if (!(obj instanceof RemoteBrokerData)) {
             return false;
         }
@@ -89,6 +164,11 @@ public class RemoteBrokerData {
         return (!(serviceObj == null || !serviceObj.equals(service)) && (!(brokerNameObj == null || !brokerNameObj.equals(brokerName))));
     }
 
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
     @Override
     public String toString() {
         return "RemoteBrokerData[service=" + service + ",name=" + brokerName + "]";
@@ -98,8 +178,4 @@ public class RemoteBrokerData {
         return local;
     }
 
-    public void setLocal(boolean local) {
-        this.local = local;
-    }
-
 }
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run tasks with the same key in order and tasks with different keys in parallel on a shared executor. Each stripe is a bounded queue drained by
+ * at most one task at a time, when a queue is full the caller wait (back pressure).
+ * 
+ * @author Samuel Liard
+ * 
+ */
+public class StripedDispatcher {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(StripedDispatcher.class);
+
+    /**
+     * Max tasks run by a stripe before giving executor thread to other stripes.
+     */
+    private static final int DRAIN_LIMIT = 100;
+
+    /**
+     * Executor running stripes.
+     */
+    private final Executor executor;
+
+    /**
+     * Stripes.
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * Define if dispatcher is stopped.
+     */
+    private volatile boolean shutdown;
+
+    /**
+     * Create dispatcher.
+     * 
+     * @param executor
+     *            executor running stripes
+     * @param stripeCount
+     *            number of stripes (max parallel tasks)
+     * @param queueSize
+     *            max waiting tasks by stripe
+     */
+    public StripedDispatcher(Executor executor, int stripeCount, int queueSize) {
+        this.executor = executor;
+        stripes = new Stripe[Math.max(1, stripeCount)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(Math.max(1, queueSize));
+        }
+    }
+
+    /**
+     * Run a task after all previous tasks with the same key.
+     * 
+     * @param key
+     *            order key (broker name)
+     * @param task
+     *            the task
+     */
+    public void execute(String key, Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Dispatcher is shutdown");
+        }
+        int index = (key == null) ? 0 : (key.hashCode() & Integer.MAX_VALUE) % stripes.length;
+        stripes[index].add(task);
+    }
+
+    /**
+     * Get number of waiting tasks.
+     * 
+     * @return queue depth of all stripes
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Stripe stripe : stripes) {
+            depth += stripe.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Stop dispatcher, waiting tasks are dropped.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Stripe stripe : stripes) {
+            stripe.queue.clear();
+        }
+    }
+
+    /**
+     * Queue of tasks run in order.
+     */
+    private final class Stripe implements Runnable {
+        private final BlockingQueue<Runnable> queue;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        Stripe(int queueSize) {
+            queue = new ArrayBlockingQueue<Runnable>(queueSize);
+        }
+
+        void add(Runnable task) {
+            try {
+                queue.put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for dispatcher queue");
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (!shutdown && scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    LOG.debug("Executor stopped, events dropped");
+                }
+            }
+        }
+
+        public void run() {
+            try {
+                Runnable task;
+                for (int i = 0; i < DRAIN_LIMIT && !shutdown && (task = queue.poll()) != null; i++) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOG.warn("Notification error : " + e.getMessage(), e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                if (!queue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database.adapter;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import com.netliard.activemq.transport.discovery.database.JDBCAdapter;
+import com.netliard.activemq.transport.discovery.database.RemoteBrokerData;
+
+/**
+ * JDBC Adapter for H2, upsert with MERGE ... USING, matched row is only updated if not live in another group (MERGE ... KEY can't be
+ * guarded).
+ * 
+ * @author Samuel Liard
+ * 
+ */
+public class H2JDBCAdapter extends JDBCAdapter {
+
+    @Override
+    protected String getUpsertStatement() {
+        return "MERGE INTO Broker USING (SELECT CAST(? AS VARCHAR(100)) AS service) s ON Broker.service=s.service "
+                + "WHEN MATCHED AND (Broker.groupName=? OR Broker.lastHeartBeat <= ? OR Broker.state=1) "
+                + "THEN UPDATE SET name=?, lastHeartBeat=?, changeVersion=?, groupName=?, state=0 "
+                + "WHEN NOT MATCHED THEN INSERT (service,name,lastHeartBeat,changeVersion,groupName) VALUES(?,?,?,?,?)";
+    }
+
+    @Override
+    protected void setUpsertParameters(PreparedStatement stmt, RemoteBrokerData data, long dateMin) throws SQLException {
+        stmt.setString(1, data.getService());
+        stmt.setString(2, getGroup());
+        stmt.setLong(3, dateMin);
+        stmt.setString(4, data.getBrokerName());
+        stmt.setLong(5, data.getLastHeartBeat());
+        stmt.setLong(6, data.getLastHeartBeat());
+        stmt.setString(7, getGroup());
+        stmt.setString(8, data.getService());
+        stmt.setString(9, data.getBrokerName());
+        stmt.setLong(10, data.getLastHeartBeat());
+        stmt.setLong(11, data.getLastHeartBeat());
+        stmt.setString(12, getGroup());
+    }
+
+    @Override
+    protected String getAddColumnStatement(String table, String column, String type) {
+        return "ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS " + column + " " + type;
+    }
+
+    @Override
+    protected String getCreateIndexStatement(String index, String table, String columns) {
+        return "CREATE INDEX IF NOT EXISTS " + index + " ON " + table + " (" + columns + ")";
+    }
+
+}
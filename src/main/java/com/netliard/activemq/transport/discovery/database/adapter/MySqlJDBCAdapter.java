@@ -0,0 +1,41 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database.adapter;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import com.netliard.activemq.transport.discovery.database.JDBCAdapter;
+
+/**
+ * JDBC Adapter for MySQL and MariaDB. No upsert : INSERT ... ON DUPLICATE KEY UPDATE can't refuse the row of a live broker of another group
+ * and its affected row count depend on driver flags, so registration use the guarded update then insert. Driver read the whole result in
+ * memory unless fetch size is Integer.MIN_VALUE, so any fetchSize stream rows one by one.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+public class MySqlJDBCAdapter extends JDBCAdapter {
+
+    @Override
+    protected void applyFetchSize(PreparedStatement stmt) throws SQLException {
+        if (getFetchSize() > 0) {
+            stmt.setFetchSize(Integer.MIN_VALUE);
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2011 liard
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.netliard.activemq.transport.discovery.database.adapter;
+
+import com.netliard.activemq.transport.discovery.database.JDBCAdapter;
+
+/**
+ * JDBC Adapter for PostgreSQL 9.6 and later, upsert with INSERT ... ON CONFLICT DO UPDATE ... WHERE, conflicting row is only updated if not
+ * live in another group.
+ * 
+ * @author Samuel Liard
+ * 
+ */
+public class PostgresqlJDBCAdapter extends JDBCAdapter {
+
+    @Override
+    protected String getUpsertStatement() {
+        return "INSERT INTO Broker (service,name,lastHeartBeat,changeVersion,groupName) VALUES(?,?,?,?,?) "
+                + "ON CONFLICT (service) DO UPDATE SET name=EXCLUDED.name, lastHeartBeat=EXCLUDED.lastHeartBeat, changeVersion=EXCLUDED.changeVersion, "
+                + "groupName=EXCLUDED.groupName, state=0 "
+                + "WHERE Broker.groupName=EXCLUDED.groupName OR Broker.lastHeartBeat <= ? OR Broker.state=1";
+    }
+
+    @Override
+    protected String getAddColumnStatement(String table, String column, String type) {
+        return "ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS " + column + " " + type;
+    }
+
+    @Override
+    protected String getCreateIndexStatement(String index, String table, String columns) {
+        return "CREATE INDEX IF NOT EXISTS " + index + " ON " + table + " (" + columns + ")";
+    }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2011 liard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.netliard.activemq.transport.discovery.database.CircuitBreaker.State;
+
+/**
+ * Circuit states with a local clock set by the test.
+ *
+ * @author Samuel Liard
+ *
+ */
+public class CircuitBreakerTest {
+
+    private static final int FAILURE_THRESHOLD = 3;
+
+    private static final long OPEN_TIME = 1000;
+
+    /**
+     * Local clock of the breaker.
+     */
+    private long time;
+
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        breaker = new CircuitBreaker("test", FAILURE_THRESHOLD, OPEN_TIME) {
+            @Override
+            long currentTime() {
+                return time;
+            }
+        };
+    }
+
+    @Test
+    public void testOpenAndClose() {
+        // a success reset the failure count
+        failCalls(FAILURE_THRESHOLD - 1);
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        failCalls(FAILURE_THRESHOLD - 1);
+        assertEquals(State.CLOSED, breaker.getState());
+
+        breaker.onFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        time += OPEN_TIME - 1;
+        assertFalse(breaker.allowRequest());
+
+        // one probe call only
+        time++;
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        breaker.onSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testProbeFailureOpenAgain() {
+        failCalls(FAILURE_THRESHOLD);
+        time += OPEN_TIME;
+        assertTrue(breaker.allowRequest());
+
+        // one failure is enough in half open state
+        breaker.onFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        // open time start again at the probe failure
+        time += OPEN_TIME - 1;
+        assertFalse(breaker.allowRequest());
+        time++;
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testNeverOpen() {
+        breaker.setFailureThreshold(0);
+        failCalls(100);
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    private void failCalls(int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.onFailure();
+        }
+    }
+
+}
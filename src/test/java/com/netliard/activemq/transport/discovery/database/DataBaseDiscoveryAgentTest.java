@@ -0,0 +1,149 @@
+/**
+ * Copyright 2011 liard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.activemq.command.DiscoveryEvent;
+import org.junit.Test;
+
+/**
+ * Membership diff of scanned brokers with the agent cache.
+ *
+ * @author Samuel Liard
+ *
+ */
+public class DataBaseDiscoveryAgentTest {
+
+    /**
+     * Number of brokers of the big cluster.
+     */
+    private static final int BROKERS = 10000;
+
+    /**
+     * Max time in ms of a diff of the big cluster, an O(n*m) diff take more than one second.
+     */
+    private static final long DIFF_BUDGET = 500;
+
+    @Test
+    public void testBrokerIdentity() {
+        RemoteBrokerData broker = new RemoteBrokerData("broker", "tcp://host:61616");
+        RemoteBrokerData scanned = new RemoteBrokerData("broker", "tcp://host:61616", 1000, 1000, false);
+
+        assertEquals(broker, scanned);
+        assertEquals(broker.hashCode(), scanned.hashCode());
+        assertFalse(broker.equals(new RemoteBrokerData("broker", "tcp://other:61616")));
+        assertFalse(broker.equals(new RemoteBrokerData("other", "tcp://host:61616")));
+
+        Set<RemoteBrokerData> set = new HashSet<RemoteBrokerData>();
+        set.add(broker);
+        assertTrue(set.contains(scanned));
+    }
+
+    @Test
+    public void testApplyView() {
+        DataBaseDiscoveryAgent agent = new DataBaseDiscoveryAgent();
+
+        agent.applyView(view(0, 3), 1);
+        assertEquals(3, agent.getBrokers().size());
+
+        // broker 0 left, broker 1 changed its service, broker 3 joined
+        Map<String, RemoteBrokerData> view = view(2, 4);
+        view.put("broker-1", new RemoteBrokerData("broker-1", "tcp://moved:61616"));
+        agent.applyView(view, 2);
+
+        assertEquals(new HashSet<RemoteBrokerData>(view.values()), new HashSet<RemoteBrokerData>(agent.getBrokers()));
+    }
+
+    @Test
+    public void testSameVersionNotApplied() {
+        DataBaseDiscoveryAgent agent = new DataBaseDiscoveryAgent();
+
+        agent.applyView(view(0, 2), 1);
+        agent.applyView(view(0, 5), 1);
+        assertEquals(2, agent.getBrokers().size());
+    }
+
+    @Test
+    public void testFailedBrokerNotAddedBack() throws Exception {
+        DataBaseDiscoveryAgent agent = new DataBaseDiscoveryAgent();
+        agent.setQuarantineTime(60000);
+        agent.applyView(view(0, 3), 1);
+
+        RemoteBrokerData failed = broker(1);
+        DiscoveryEvent event = new DiscoveryEvent(failed.getService());
+        event.setBrokerName(failed.getBrokerName());
+        agent.serviceFailed(event);
+        assertEquals(2, agent.getBrokers().size());
+
+        // still in data base, but quarantined
+        agent.applyView(view(0, 3), 2);
+        assertEquals(2, agent.getBrokers().size());
+        assertFalse(agent.getBrokers().contains(failed));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPhiThresholdNeedFullScans() throws Exception {
+        DataBaseDiscoveryAgent agent = new DataBaseDiscoveryAgent();
+        agent.setPhiThreshold(8);
+        agent.setIncrementalScan(true);
+        agent.start();
+    }
+
+    @Test
+    public void testDiffTime() {
+        DataBaseDiscoveryAgent agent = new DataBaseDiscoveryAgent();
+        Map<String, RemoteBrokerData> full = view(0, BROKERS);
+        Map<String, RemoteBrokerData> shifted = view(BROKERS / 2, BROKERS + BROKERS / 2);
+
+        // warm up
+        agent.applyView(full, 1);
+        agent.applyView(shifted, 2);
+
+        agent.applyView(full, 3);
+        long start = System.nanoTime();
+        agent.applyView(shifted, 4);
+        long time = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(new HashSet<RemoteBrokerData>(shifted.values()), new HashSet<RemoteBrokerData>(agent.getBrokers()));
+        assertTrue("Diff of " + BROKERS + " brokers took " + time + " ms", time < DIFF_BUDGET);
+    }
+
+    private static RemoteBrokerData broker(int index) {
+        return new RemoteBrokerData("broker-" + index, "tcp://host-" + index + ":61616");
+    }
+
+    /**
+     * Scan result with brokers from first to last excluded.
+     */
+    private static Map<String, RemoteBrokerData> view(int first, int last) {
+        Map<String, RemoteBrokerData> view = new HashMap<String, RemoteBrokerData>();
+        for (int i = first; i < last; i++) {
+            RemoteBrokerData broker = broker(i);
+            view.put(broker.getBrokerName(), broker);
+        }
+        return view;
+    }
+
+}
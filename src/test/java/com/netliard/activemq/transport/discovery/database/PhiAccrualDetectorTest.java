@@ -0,0 +1,124 @@
+/**
+ * Copyright 2011 liard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Failure detector rounds with a local clock set by the test.
+ *
+ * @author Samuel Liard
+ *
+ */
+public class PhiAccrualDetectorTest {
+
+    /**
+     * Time in ms between 2 scans, brokers heartbeat once by scan.
+     */
+    private static final long INTERVAL = 1000;
+
+    /**
+     * Local clock of the detector.
+     */
+    private long time;
+
+    private PhiAccrualDetector detector;
+
+    @Before
+    public void setUp() {
+        detector = new PhiAccrualDetector(8, 100) {
+            @Override
+            long currentTime() {
+                return time;
+            }
+        };
+
+        // broker a and b heartbeat on each scan
+        for (time = 0; time < 5 * INTERVAL; time += INTERVAL) {
+            assertTrue(detector.heartBeat(broker("a", time)));
+            assertTrue(detector.heartBeat(broker("b", time)));
+            assertTrue(detector.endRound().isEmpty());
+        }
+    }
+
+    @Test
+    public void testSuspicion() {
+        long lastHeartBeat = time - INTERVAL;
+
+        // a late by one interval : phi about 0.3
+        detector.heartBeat(broker("a", lastHeartBeat));
+        detector.heartBeat(broker("b", time));
+        assertTrue(detector.endRound().isEmpty());
+
+        // a late by two intervals, far above threshold
+        time += INTERVAL;
+        detector.heartBeat(broker("a", lastHeartBeat));
+        detector.heartBeat(broker("b", time));
+        assertEquals(Collections.singletonList(broker("a", lastHeartBeat)), detector.endRound());
+
+        // still suspected while its heartbeat don't change, and not suspected again
+        time += INTERVAL;
+        assertFalse(detector.heartBeat(broker("a", lastHeartBeat)));
+        detector.heartBeat(broker("b", time));
+        assertTrue(detector.endRound().isEmpty());
+    }
+
+    @Test
+    public void testStalledRound() {
+        long lastHeartBeat = time - INTERVAL;
+
+        // data base stall : no heartbeat advance for a long time, nobody is suspected
+        for (int i = 0; i < 10; i++) {
+            time += INTERVAL;
+            assertTrue(detector.heartBeat(broker("a", lastHeartBeat)));
+            assertTrue(detector.heartBeat(broker("b", lastHeartBeat)));
+            assertTrue(detector.endRound().isEmpty());
+        }
+    }
+
+    @Test
+    public void testRecovery() {
+        long lastHeartBeat = time - INTERVAL;
+        detector.heartBeat(broker("a", lastHeartBeat));
+        detector.heartBeat(broker("b", time));
+        detector.endRound();
+        time += INTERVAL;
+        detector.heartBeat(broker("a", lastHeartBeat));
+        detector.heartBeat(broker("b", time));
+        assertEquals(1, detector.endRound().size());
+
+        // a heartbeat again
+        for (int i = 0; i < 5; i++) {
+            time += INTERVAL;
+            assertTrue(detector.heartBeat(broker("a", time)));
+            assertTrue(detector.heartBeat(broker("b", time)));
+            assertTrue(detector.endRound().isEmpty());
+        }
+    }
+
+    private static RemoteBrokerData broker(String name, long heartBeat) {
+        return new RemoteBrokerData(name, "tcp://" + name + ":61616", heartBeat, 0, false);
+    }
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2011 liard
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.netliard.activemq.transport.discovery.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Task order by key and back pressure of the notification dispatcher.
+ *
+ * @author Samuel Liard
+ *
+ */
+public class StripedDispatcherTest {
+
+    /**
+     * Max time in s to wait for tasks.
+     */
+    private static final long TIMEOUT = 10;
+
+    private ExecutorService executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOrderByKey() throws Exception {
+        final int keys = 20;
+        final int tasks = 500;
+        executor = Executors.newFixedThreadPool(4);
+        // small queues, so callers also wait on full stripes
+        StripedDispatcher dispatcher = new StripedDispatcher(executor, 4, 16);
+
+        final CountDownLatch done = new CountDownLatch(keys * tasks);
+        List<List<Integer>> runs = new ArrayList<List<Integer>>();
+        for (int k = 0; k < keys; k++) {
+            runs.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        for (int i = 0; i < tasks; i++) {
+            for (int k = 0; k < keys; k++) {
+                final List<Integer> run = runs.get(k);
+                final int index = i;
+                dispatcher.execute("broker-" + k, new Runnable() {
+                    public void run() {
+                        run.add(index);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        for (List<Integer> run : runs) {
+            assertEquals(tasks, run.size());
+            for (int i = 0; i < tasks; i++) {
+                assertEquals(Integer.valueOf(i), run.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testFullStripeWaitCaller() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+        final StripedDispatcher dispatcher = new StripedDispatcher(executor, 1, 2);
+
+        final List<Integer> run = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(5);
+
+        // first task block the stripe, the next 2 fill its queue
+        dispatcher.execute("broker", new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                run.add(0);
+                done.countDown();
+            }
+        });
+        assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+        dispatcher.execute("broker", task(1, run, done));
+        dispatcher.execute("broker", task(2, run, done));
+        assertEquals(2, dispatcher.getQueueDepth());
+
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                dispatcher.execute("broker", task(3, run, done));
+                dispatcher.execute("broker", task(4, run, done));
+            }
+        };
+        caller.start();
+
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+        while (caller.getState() != Thread.State.WAITING && System.currentTimeMillis() < end) {
+            Thread.yield();
+        }
+        assertEquals(Thread.State.WAITING, caller.getState());
+        assertEquals(2, dispatcher.getQueueDepth());
+        assertTrue(run.isEmpty());
+
+        gate.countDown();
+        caller.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), run);
+    }
+
+    private static Runnable task(final int index, final List<Integer> run, final CountDownLatch done) {
+        return new Runnable() {
+            public void run() {
+                run.add(index);
+                done.countDown();
+            }
+        };
+    }
+
+}